@@ -53,6 +53,21 @@ public class InstanceImpl implements MultiLabelInstance {
         this.instanceHeader = inst.instanceHeader;
     }
 
+    /**
+     * Instantiates a weighted view of an instance. The view shares the
+     * instance data and header with the original and only overrides the
+     * weight, so the values must not be modified through either of them.
+     *
+     * @param inst the inst
+     * @param weight the weight
+     */
+    public InstanceImpl(InstanceImpl inst, double weight) {
+        this.weight = weight;
+        this.weightLabel = inst.weightLabel;
+        this.instanceData = inst.instanceData;
+        this.instanceHeader = inst.instanceHeader;
+    }
+
     //Dense
     /**
      * Instantiates a new instance.
@@ -1,6 +1,8 @@
 package moa.classifiers.multilabel;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.github.javacliparser.FloatOption;
@@ -25,9 +27,49 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 	
 	public FloatOption minimumFitnessOption = new FloatOption( "fitness", 'f', "The minimum fitness for an instance to stay alive", 0.001, 0, 1);
 
-	private List<Instance> STMwindow;
-	private double[] attributeRangeMin;
-	private double[] attributeRangeMax;
+	public IntOption pqSubspacesOption = new IntOption("pqSubspaces", 'q', "The number of product-quantized sub-vectors of the window (0 for exact distances only)", 0, 0, Integer.MAX_VALUE);
+
+	public IntOption pqTrainingOption = new IntOption("pqTraining", 't', "The number of instances the product quantizer is trained on", 1000, 1, Integer.MAX_VALUE);
+
+	public IntOption pqRefineOption = new IntOption("pqRefine", 'r', "The number of candidates per neighbor re-ranked by exact distance", 4, 1, Integer.MAX_VALUE);
+
+	public IntOption pqExactOption = new IntOption("pqExact", 'e', "The number of newest instances kept to re-rank the candidates once the quantizer is trained, the others keeping only their codes (0 = all)", 100, 0, Integer.MAX_VALUE);
+
+	public IntOption rangeFreezeOption = new IntOption("rangeFreeze", 'z', "The number of training instances after which the ranges of the attributes are frozen (0 = never)", 0, 0, Integer.MAX_VALUE);
+
+	/**
+	 * Member of the window: its fitness, its packed labels and, once the quantizer is trained, its codes.
+	 * Only the newest members keep their instance then.
+	 */
+	private static class Member implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		Instance instance;
+		byte[] codes;
+		long[] labels;
+		double fitness;
+
+		Member(Instance instance) {
+			this.instance = instance;
+			this.fitness = instance.weight();
+			this.labels = new long[(instance.numberOutputTargets() + 63) >>> 6];
+
+			for(int j = 0; j < instance.numberOutputTargets(); j++)
+				if(instance.classValue(j) == 1)
+					labels[j >>> 6] |= 1L << j;
+		}
+
+		boolean hasLabel(int label) {
+			return (labels[label >>> 6] & (1L << label)) != 0;
+		}
+	}
+
+	private List<Member> STMwindow;
+	private ProductQuantizer quantizer;
+	private List<double[]> pqTrainingSamples;
+	private RangeNormalizer normalizer;
+	private DistanceKernel distanceKernel;
 	private double prequentialSuccesses;
 	private double prequentialDenominator;
 	
@@ -42,9 +84,11 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 			prequentialSuccesses = 0;
 			prequentialDenominator = 0;
 			
-			STMwindow = new ArrayList<Instance>();
-			attributeRangeMin = new double[context.numInputAttributes()];
-			attributeRangeMax = new double[context.numInputAttributes()];
+			STMwindow = new ArrayList<Member>();
+			normalizer = new RangeNormalizer(context.numInputAttributes());
+			normalizer.setFreezeAfter(rangeFreezeOption.getValue());
+			distanceKernel = null;
+			resetQuantizer();
 
 		} catch(Exception e) {
 			System.err.println("Error: no model context available.");
@@ -59,22 +103,33 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 		prequentialDenominator = 0;
 		
 		if(STMwindow != null)	STMwindow.clear();
+		distanceKernel = null;
+		if(normalizer != null)	resetQuantizer();
+	}
+
+	private void resetQuantizer() {
+		quantizer = pqSubspacesOption.getValue() > 0 ? new ProductQuantizer(normalizer, pqSubspacesOption.getValue()) : null;
+		pqTrainingSamples = new ArrayList<double[]>();
 	}
 
 	@Override
 	public void trainOnInstanceImpl(MultiLabelInstance inst) {
 		
-		updateRanges(inst);
+		normalizer.update(inst);
 		
 		for(int i = 0; i < STMwindow.size(); i++) {
-			STMwindow.get(i).setWeight(STMwindow.get(i).weight() * 0.995);
+			STMwindow.get(i).fitness *= 0.995;
 		}
 		
-		STMwindow.add(inst);
+		Member member = new Member(inst);
+		kernel(inst).add(inst);
+		STMwindow.add(member);
+		if(quantizer != null)
+			encode(member);
 		
 		for(int i = STMwindow.size() - 1; i >= 0; i--) {
-        	if(STMwindow.get(i).weight() < minimumFitnessOption.getValue()) {
-        		STMwindow.remove(i);
+        	if(STMwindow.get(i).fitness < minimumFitnessOption.getValue()) {
+        		forget(STMwindow.remove(i));
         	}
         }
 		
@@ -83,13 +138,61 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
         	double worsttInstance = Double.MAX_VALUE;
         	
         	for(int i = 0; i < STMwindow.size(); i++) {
-            	if(STMwindow.get(i).weight() < worsttInstance) {
+            	if(STMwindow.get(i).fitness < worsttInstance) {
             		worstInstanceIndex = i;
-            		worsttInstance = STMwindow.get(i).weight();
+            		worsttInstance = STMwindow.get(i).fitness;
             	}
             }
         	
-        	STMwindow.remove(worstInstanceIndex);
+        	forget(STMwindow.remove(worstInstanceIndex));
+		}
+	}
+
+	/**
+	 * Returns the kernel, chosen for the representation of the first instance seen. It is created with the window
+	 * empty, so it keeps the instance of every member.
+	 */
+	private DistanceKernel kernel(Instance instance) {
+		if(distanceKernel == null)
+			distanceKernel = DistanceKernel.create(DistanceKernel.Metric.COSINE, instance, normalizer);
+		return distanceKernel;
+	}
+
+	/**
+	 * Makes the kernel forget the instance of a member leaving the window, if it still has one.
+	 */
+	private void forget(Member member) {
+		if(member.instance != null)
+			distanceKernel.remove(member.instance);
+	}
+
+	/**
+	 * Encodes the member added to the window, or collects its instance until the quantizer can be trained.
+	 * Once the quantizer is trained, the member leaving the newest ones drops its instance.
+	 */
+	private void encode(Member member) {
+		if(quantizer.isTrained()) {
+			member.codes = quantizer.encode(member.instance);
+			int exact = pqExactOption.getValue();
+			if(exact > 0 && STMwindow.size() > exact) {
+				forget(STMwindow.get(STMwindow.size() - 1 - exact));
+				STMwindow.get(STMwindow.size() - 1 - exact).instance = null;
+			}
+			return;
+		}
+
+		pqTrainingSamples.add(ProductQuantizer.features(member.instance));
+
+		if(pqTrainingSamples.size() >= pqTrainingOption.getValue()) {
+			quantizer.train(pqTrainingSamples, this.classifierRandom);
+			pqTrainingSamples = null;
+
+			int exact = pqExactOption.getValue();
+			for(int i = 0; i < STMwindow.size(); i++) {
+				STMwindow.get(i).codes = quantizer.encode(STMwindow.get(i).instance);
+				if(exact > 0 && i < STMwindow.size() - exact)
+					STMwindow.get(i).instance = null;
+			}
 		}
 	}
 
@@ -101,7 +204,7 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 
 		MultiLabelPrediction prediction = new MultiLabelPrediction(instance.numberOutputTargets());
 
-		double[] distancesToSTM = get1ToNDistances(instance, STMwindow);
+		double[] distancesToSTM = get1ToNDistances(instance);
 
 		int[] nnIndicesSTM = nArgMin(Math.min(distancesToSTM.length, this.k.getValue()), distancesToSTM);
 		int[] successfulpredictionsSTM = new int[nnIndicesSTM.length];
@@ -117,14 +220,15 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 			double votesNegative = 0;
 			
 			for (int i = 0; i < nnIndicesSTM.length; i++) {
-				int nnIdx = nnIndicesSTM[i];
+				Member member = STMwindow.get(nnIndicesSTM[i]);
+				boolean hasLabel = member.hasLabel(j);
 				
-				if (STMwindow.get(nnIdx).classValue(j) == 1)
-					votesPositive += STMwindow.get(nnIdx).weight() * distances[i];
+				if (hasLabel)
+					votesPositive += member.fitness * distances[i];
 				else
-					votesNegative += STMwindow.get(nnIdx).weight() * distances[i];
+					votesNegative += member.fitness * distances[i];
 				
-				if(STMwindow.get(nnIdx).classValue(j) == instance.classValue(j)) {
+				if(hasLabel == (instance.classValue(j) == 1)) {
 					successfulpredictionsSTM[i]++;
 				}
 			}
@@ -139,9 +243,9 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 		
 		// Instance was cited, reset age based on current age and accuracy
 		for (int i = 0; i < nnIndicesSTM.length; i++) {
-			int nnIdx = nnIndicesSTM[i];
+			Member member = STMwindow.get(nnIndicesSTM[i]);
 			double relativeSuccessRatio = (successfulpredictionsSTM[i] / instance.numberOutputTargets()) - prequentialSuccesses / prequentialDenominator;
-			STMwindow.get(nnIdx).setWeight(Math.max(0, Math.min(1, STMwindow.get(nnIdx).weight() + relativeSuccessRatio)));
+			member.fitness = Math.max(0, Math.min(1, member.fitness + relativeSuccessRatio));
 		}
 		
 		// Update prequential accuracy of dataset
@@ -158,26 +262,74 @@ public class ARkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 		return prediction;
 	}
 
-	private void updateRanges(MultiLabelInstance instance) {
-		for(int i = 0; i < instance.numInputAttributes(); i++)
-		{
-			if(instance.valueInputAttribute(i) < attributeRangeMin[i])
-				attributeRangeMin[i] = instance.valueInputAttribute(i);
-			if(instance.valueInputAttribute(i) > attributeRangeMax[i])
-				attributeRangeMax[i] = instance.valueInputAttribute(i);
-		}
-	}
-	
-	private double[] get1ToNDistances(Instance sample, List<Instance> samples) {
+	/**
+	 * Returns the distances from the sample to the members of the window. Once the quantizer is trained, members
+	 * that dropped their instance keep the distance of their codes.
+	 */
+	private double[] get1ToNDistances(Instance sample) {
 
-		double[] distances = new double[samples.size()];
+		double[] distances = new double[STMwindow.size()];
+		kernel(sample);
+		
+		int candidates = this.k.getValue() * pqRefineOption.getValue();
+		boolean coded = quantizer != null && quantizer.isTrained();
+		
+		if(coded) {
+			quantizer.setQuery(sample);
+			
+			for (int i = 0; i < STMwindow.size(); i++)
+				distances[i] = quantizer.distance(STMwindow.get(i).codes);
+		}
+		
+		if(coded && STMwindow.size() > candidates) {
+			// Exact distances only for the nearest candidates by their codes, the others are never neighbors
+			boolean[] selected = new boolean[STMwindow.size()];
+			for (int index : nearestCandidates(candidates, distances))
+				selected[index] = true;
+			
+			for (int i = 0; i < STMwindow.size(); i++) {
+				if(!selected[i])
+					distances[i] = Double.POSITIVE_INFINITY;
+				else if(STMwindow.get(i).instance != null)
+					distances[i] = distanceKernel.distance(STMwindow.get(i).instance, sample);
+			}
+			
+			return distances;
+		}
 		
-		for (int i = 0; i < samples.size(); i++)
-			distances[i] = VectorOperators.getCosAtt(samples.get(i), sample, this.attributeRangeMax, this.attributeRangeMin);
+		for (int i = 0; i < STMwindow.size(); i++)
+			if(STMwindow.get(i).instance != null)
+				distances[i] = distanceKernel.distance(STMwindow.get(i).instance, sample);
 		
 		return distances;
 	}
 
+	/**
+	 * Returns the indices of the n smallest values, kept sorted by insertion in a single pass, or of all the values
+	 * but NaN when fewer.
+	 */
+	private static int[] nearestCandidates(int n, double[] values) {
+		int[] indices = new int[n];
+		double[] smallest = new double[n];
+		int size = 0;
+
+		for (int j = 0; j < values.length; j++) {
+			if(Double.isNaN(values[j]) || (size == n && values[j] >= smallest[n - 1]))
+				continue;
+
+			int position = size < n ? size++ : n - 1;
+			while(position > 0 && smallest[position - 1] > values[j]) {
+				smallest[position] = smallest[position - 1];
+				indices[position] = indices[position - 1];
+				position--;
+			}
+			smallest[position] = values[j];
+			indices[position] = j;
+		}
+
+		return Arrays.copyOf(indices, size);
+	}
+
 	/**
 	 * Returns the n smallest indices of the smallest values (sorted).
 	 */
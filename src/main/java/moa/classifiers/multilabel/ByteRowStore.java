@@ -0,0 +1,203 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Input attributes of the window of a learner, normalized by its ranges and quantized to one byte per attribute,
+ * one row per slot. The rows embed the instances the way the Euclidean DistanceKernel measures them: dense
+ * instances by their normalized attributes, sparse ones by their normalized stored values and 0 elsewhere, so the
+ * distances between rows are distances of the kernel whichever the sign of the attributes.
+ * The members of the window lie within the ranges, so each code is at most half a step from the embedded value,
+ * and the distance from a query to the codes of a member, less half a step per attribute, is a lower bound of their
+ * exact distance. Candidates whose bound exceeds the current neighbours are skipped, and only the others are ranked
+ * by their exact distance. Members outside frozen ranges are clamped and never skipped.
+ * Members whose instance the learner no longer keeps, which must not be clamped, are measured by their codes alone,
+ * and are quantized again from their codes when the ranges widen.
+ */
+public class ByteRowStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int LEVELS = 255;
+
+	private RangeNormalizer normalizer;
+	private int numFeatures;
+	private double slack;
+
+	private RowEmbedding embedding;
+
+	private byte[] codes;
+	private boolean[] clamped;
+	private boolean[] stored;
+	private double[] query;
+	private double[] values;
+
+	// Ranges the codes were quantized with
+	private double[] codedMin;
+	private double[] codedInverseSpan;
+
+	private long numBounded;
+	private long numPruned;
+
+	/**
+	 * Creates a store of the given number of slots, normalizing by the given ranges, which are shared with and
+	 * updated by the learner.
+	 */
+	public ByteRowStore(RangeNormalizer normalizer, int capacity) {
+		this.normalizer = normalizer;
+		this.numFeatures = normalizer.numAttributes();
+		this.embedding = new RowEmbedding(normalizer);
+		// Half a step per attribute, widened to cover the rounding of the sums
+		this.slack = 0.5 * Math.sqrt(numFeatures) / LEVELS * (1 + 1e-6) + 1e-12;
+		this.codes = new byte[capacity * numFeatures];
+		this.clamped = new boolean[capacity];
+		this.stored = new boolean[capacity];
+		this.query = new double[numFeatures];
+		this.values = new double[numFeatures];
+		this.codedMin = normalizer.getMin().clone();
+		this.codedInverseSpan = normalizer.getInverseSpan().clone();
+	}
+
+	/**
+	 * Quantizes the instance into the row of the slot, clamping it to the ranges when they are frozen.
+	 */
+	public void set(int slot, Instance instance) {
+		embedding.embed(instance, values);
+		quantize(slot);
+	}
+
+	private void quantize(int slot) {
+		int offset = slot * numFeatures;
+		clamped[slot] = false;
+		stored[slot] = true;
+
+		for (int i = 0; i < numFeatures; i++) {
+			double value = values[i];
+			if(value < 0 || value > 1) {
+				value = Math.max(0, Math.min(1, value));
+				clamped[slot] = true;
+			}
+			codes[offset + i] = (byte) Math.round(value * LEVELS);
+		}
+	}
+
+	/**
+	 * Quantizes again every member of the window after the ranges changed, from its instance, or from its codes
+	 * when the slot of the window is null.
+	 */
+	public void setAll(Instance[] window) {
+		double[] min = normalizer.getMin();
+		double[] inverseSpan = normalizer.getInverseSpan();
+
+		for (int slot = 0; slot < window.length; slot++) {
+			if(window[slot] != null) {
+				set(slot, window[slot]);
+			} else if(stored[slot]) {
+				int offset = slot * numFeatures;
+				for (int i = 0; i < numFeatures; i++) {
+					int code = codes[offset + i] & 0xFF;
+					// Values absent from sparse rows stay 0
+					if(embedding.isSparse() && code == 0) {
+						values[i] = 0;
+						continue;
+					}
+					double value = codedInverseSpan[i] > 0 ? codedMin[i] + code / (LEVELS * codedInverseSpan[i]) : codedMin[i];
+					values[i] = (value - min[i]) * inverseSpan[i];
+				}
+				quantize(slot);
+			}
+		}
+
+		System.arraycopy(min, 0, codedMin, 0, numFeatures);
+		System.arraycopy(inverseSpan, 0, codedInverseSpan, 0, numFeatures);
+	}
+
+	/**
+	 * Returns whether the member of the slot lies outside the ranges, so its codes are not within half a step of it.
+	 */
+	public boolean isClamped(int slot) {
+		return clamped[slot];
+	}
+
+	/**
+	 * Empties the row of a member leaving the window.
+	 */
+	public void remove(int slot) {
+		stored[slot] = false;
+	}
+
+	/**
+	 * Normalizes the query, in units of quantization steps, without quantizing it.
+	 */
+	public void setQuery(Instance instance) {
+		embedding.embed(instance, values);
+		for (int i = 0; i < numFeatures; i++)
+			query[i] = values[i] * LEVELS;
+	}
+
+	/**
+	 * Makes the codes of the member of the slot the query.
+	 */
+	public void setQuery(int slot) {
+		int offset = slot * numFeatures;
+		for (int i = 0; i < numFeatures; i++)
+			query[i] = codes[offset + i] & 0xFF;
+	}
+
+	/**
+	 * Returns whether the exact distance from the query to the member of the slot is certainly not smaller than the bound.
+	 */
+	public boolean exceeds(int slot, double bound) {
+		if(bound == Double.POSITIVE_INFINITY || clamped[slot])
+			return false;
+
+		numBounded++;
+
+		if(distance(slot) - slack >= bound) {
+			numPruned++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the distance from the query to the codes of the member of the slot.
+	 */
+	public double distance(int slot) {
+		int offset = slot * numFeatures;
+		double distance = 0;
+
+		for (int i = 0; i < numFeatures; i++) {
+			double d = query[i] - (codes[offset + i] & 0xFF);
+			distance += d * d;
+		}
+
+		return Math.sqrt(distance) / LEVELS;
+	}
+
+	/**
+	 * Returns the distance from the codes of the member of the slot to the instance.
+	 */
+	public double distance(int slot, Instance instance) {
+		embedding.embed(instance, values);
+
+		int offset = slot * numFeatures;
+		double distance = 0;
+
+		for (int i = 0; i < numFeatures; i++) {
+			double d = values[i] * LEVELS - (codes[offset + i] & 0xFF);
+			distance += d * d;
+		}
+
+		return Math.sqrt(distance) / LEVELS;
+	}
+
+	/**
+	 * Returns the fraction of bounded candidates skipped without computing their exact distance.
+	 */
+	public double getPruneRate() {
+		return numBounded == 0 ? 0 : numPruned / (double) numBounded;
+	}
+}
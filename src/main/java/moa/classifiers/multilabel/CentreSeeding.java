@@ -0,0 +1,117 @@
+package moa.classifiers.multilabel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * kmeans++ seeding of the kernels of ODM and OMK over their initial stream. The cumulative distances are kept as a
+ * prefix sum, so that each centre is drawn by binary search, and the distances to the nearest centre are updated
+ * on a fork/join pool when more than one job is allowed.
+ */
+public class CentreSeeding {
+
+    /**
+     * Distance between the sample and the centre of the given indices.
+     */
+    public interface SampleDistance {
+        double distance(int sample, int centre);
+    }
+
+    /**
+     * Chooses k centres among n samples, starting from the first one. Each following centre is drawn with a
+     * probability proportional to its distance to the nearest centre already chosen, or uniformly among the samples
+     * not chosen yet when no distance is positive.
+     */
+    public static ArrayList<Integer> chooseCentres(int n, int k, SampleDistance metric, Random random, int numberOfJobs) {
+
+        if (numberOfJobs == -1) {
+            numberOfJobs = Runtime.getRuntime().availableProcessors();
+        }
+
+        ForkJoinPool pool = numberOfJobs > 1 ? new ForkJoinPool(numberOfJobs) : null;
+
+        try {
+            ArrayList<Integer> centres = new ArrayList<Integer>();
+            boolean[] chosen = new boolean[n];
+            double[] distances = new double[n];
+            double[] prefixSums = new double[n];
+
+            int pos = 0;
+            centres.add(pos);
+            chosen[pos] = true;
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+
+            for (int i = 1; i < k; ++i) {
+                double cost = updateDistances(distances, prefixSums, pos, metric, pool);
+
+                if (cost > 0.0D) {
+                    pos = search(prefixSums, random.nextDouble(), cost);
+                } else {
+                    do {
+                        pos = random.nextInt(n);
+                    } while (chosen[pos]);
+                }
+
+                centres.add(pos);
+                chosen[pos] = true;
+            }
+            return centres;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Lowers the distances with those to the new centre, fills the prefix sums and returns their total.
+     */
+    private static double updateDistances(double[] distances, double[] prefixSums, int centre, SampleDistance metric, ForkJoinPool pool) {
+
+        if (pool == null) {
+            for (int j = 0; j < distances.length; ++j) {
+                lowerDistance(distances, j, centre, metric);
+            }
+        } else {
+            pool.submit(() -> IntStream.range(0, distances.length).parallel().forEach(j -> lowerDistance(distances, j, centre, metric))).join();
+        }
+
+        // Running maximum of the sums, so that rounding below zero cannot break the ordering the search relies on
+        double sum = 0.0D;
+        for (int j = 0; j < distances.length; ++j) {
+            sum += distances[j];
+            prefixSums[j] = j > 0 ? Math.max(prefixSums[j - 1], sum) : sum;
+        }
+        return sum;
+    }
+
+    private static void lowerDistance(double[] distances, int sample, int centre, SampleDistance metric) {
+        double newdist = metric.distance(sample, centre);
+        // The first centre sets every distance, later ones only lower them (NaN distances stay as they are)
+        if (distances[sample] == Double.POSITIVE_INFINITY || distances[sample] > newdist) {
+            distances[sample] = newdist;
+        }
+    }
+
+    /**
+     * Returns the first sample whose prefix sum reaches the given fraction of the cost.
+     */
+    private static int search(double[] prefixSums, double fraction, double cost) {
+
+        int low = 0;
+        int high = prefixSums.length - 1;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (fraction <= prefixSums[middle] / cost) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+}
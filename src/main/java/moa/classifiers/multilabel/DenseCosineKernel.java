@@ -0,0 +1,43 @@
+package moa.classifiers.multilabel;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Cosine distance between dense instances, over all the input attributes or over a subspace of them. The products
+ * run over the normalized rows of the instances, whose squared norms are kept along with them.
+ */
+public final class DenseCosineKernel implements DistanceKernel {
+
+	private static final long serialVersionUID = 1L;
+
+	private final InstanceRows rows;
+
+	/**
+	 * Creates a kernel over the given attributes in increasing order, or over all of them when null.
+	 */
+	public DenseCosineKernel(RangeNormalizer normalizer, int[] attributes) {
+		this.rows = new InstanceRows(normalizer, attributes);
+	}
+
+	@Override
+	public void add(Instance instance) {
+		rows.add(instance);
+	}
+
+	@Override
+	public void remove(Instance instance) {
+		rows.remove(instance);
+	}
+
+	@Override
+	public double distance(Instance instance1, Instance instance2) {
+
+		InstanceRows.Row row1 = rows.row(instance1, 0);
+		InstanceRows.Row row2 = rows.row(instance2, 1);
+
+		// Empty ranges normalize to 0
+		double distance = RowOperators.dotProduct(row1.values, 0, row2.values, 0, rows.length());
+
+		return 1 - distance / (Math.sqrt(row1.squaredNorm) * Math.sqrt(row2.squaredNorm));
+	}
+}
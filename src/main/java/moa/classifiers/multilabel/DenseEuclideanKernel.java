@@ -0,0 +1,147 @@
+package moa.classifiers.multilabel;
+
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Euclidean distance between dense instances, over their normalized rows. The rows are summed by RowOperators in
+ * blocks of attributes. Bounded distances visit the blocks in decreasing order of normalized variance, so that far
+ * candidates are abandoned after a few blocks, and the distances of the candidates kept add up the same blocks in the
+ * order of the attributes, as the unbounded ones do.
+ */
+public final class DenseEuclideanKernel implements DistanceKernel {
+
+	private static final long serialVersionUID = 1L;
+
+	// Relative slack of the bound, covering the rounding of the square root and of the summation order
+	private static final double SLACK = 1e-9;
+
+	private static final int REORDER_PERIOD = 500;
+
+	// Attributes per block, a few vectors wide
+	private static final int BLOCK = 32;
+
+	private final double[] inverseSpan;
+	private final boolean reorderable;
+	private final InstanceRows rows;
+	private final int numBlocks;
+
+	private int[] blockOrder;
+	private double[] blockDistances;
+	private double[] sums;
+	private double[] squaredSums;
+	private long numUpdates;
+
+	/**
+	 * Creates a kernel over the given attributes in increasing order, or over all of them when null.
+	 * The order of the blocks of a subspace is never changed.
+	 */
+	public DenseEuclideanKernel(RangeNormalizer normalizer, int[] attributes) {
+		this.inverseSpan = normalizer.getInverseSpan();
+		this.reorderable = attributes == null;
+		this.rows = new InstanceRows(normalizer, attributes);
+		this.numBlocks = (rows.length() + BLOCK - 1) / BLOCK;
+
+		this.blockOrder = new int[numBlocks];
+		for (int b = 0; b < numBlocks; b++)
+			blockOrder[b] = b;
+
+		this.blockDistances = new double[numBlocks];
+		this.sums = new double[inverseSpan.length];
+		this.squaredSums = new double[inverseSpan.length];
+	}
+
+	@Override
+	public void update(Instance instance) {
+		if(!reorderable)
+			return;
+
+		for (int i = 0; i < sums.length; i++) {
+			double value = instance.valueInputAttribute(i);
+			sums[i] += value;
+			squaredSums[i] += value * value;
+		}
+
+		if(++numUpdates % REORDER_PERIOD == 0)
+			reorder();
+	}
+
+	private void reorder() {
+		Integer[] sorted = new Integer[numBlocks];
+		double[] variances = new double[numBlocks];
+
+		for (int i = 0; i < sums.length; i++) {
+			double mean = sums[i] / numUpdates;
+			if(inverseSpan[i] != 0)
+				variances[i / BLOCK] += (squaredSums[i] / numUpdates - mean * mean) * inverseSpan[i] * inverseSpan[i];
+		}
+
+		for (int b = 0; b < numBlocks; b++)
+			sorted[b] = b;
+
+		Arrays.sort(sorted, (a, b) -> Double.compare(variances[b], variances[a]));
+
+		for (int b = 0; b < numBlocks; b++)
+			blockOrder[b] = sorted[b];
+	}
+
+	@Override
+	public void add(Instance instance) {
+		rows.add(instance);
+	}
+
+	@Override
+	public void remove(Instance instance) {
+		rows.remove(instance);
+	}
+
+	private double blockDistance(double[] row1, double[] row2, int block) {
+		int from = block * BLOCK;
+		return RowOperators.squaredDistance(row1, from, row2, from, Math.min(BLOCK, row1.length - from));
+	}
+
+	@Override
+	public double distance(Instance instance1, Instance instance2) {
+
+		double[] row1 = rows.row(instance1, 0).values;
+		double[] row2 = rows.row(instance2, 1).values;
+		double distance = 0;
+
+		// Empty ranges normalize to 0 and add nothing
+		for (int b = 0; b < numBlocks; b++)
+			distance += blockDistance(row1, row2, b);
+
+		return Math.sqrt(distance);
+	}
+
+	@Override
+	public double distance(Instance instance1, Instance instance2, double bound) {
+
+		if(bound == Double.POSITIVE_INFINITY)
+			return distance(instance1, instance2);
+
+		double[] row1 = rows.row(instance1, 0).values;
+		double[] row2 = rows.row(instance2, 1).values;
+		double limit = bound * bound * (1 + SLACK);
+		double partial = 0;
+
+		for (int o = 0; o < numBlocks; o++)
+		{
+			int b = blockOrder[o];
+
+			blockDistances[b] = blockDistance(row1, row2, b);
+			partial += blockDistances[b];
+
+			if(partial > limit)
+				return Double.POSITIVE_INFINITY;
+		}
+
+		// The sum in a different order may differ in the last bits, the distances kept add up the blocks as always
+		double distance = 0;
+		for (int b = 0; b < numBlocks; b++)
+			distance += blockDistances[b];
+
+		return Math.sqrt(distance);
+	}
+}
@@ -0,0 +1,81 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Distance between the input attributes of two instances, normalized by the ranges of a learner. There is one
+ * implementation per metric and representation, chosen once from the first instance of the stream, so that the hot
+ * loops neither check whether every pair of instances is dense nor where the labels of every sparse value are.
+ */
+public interface DistanceKernel extends Serializable {
+
+	/**
+	 * The metrics for which kernels exist.
+	 */
+	enum Metric {
+		EUCLIDEAN, COSINE
+	}
+
+	/**
+	 * Returns the distance between two instances.
+	 */
+	double distance(Instance instance1, Instance instance2);
+
+	/**
+	 * Returns the distance between two instances, or infinity when it is certainly not smaller than the bound.
+	 */
+	default double distance(Instance instance1, Instance instance2, double bound) {
+		return distance(instance1, instance2);
+	}
+
+	/**
+	 * Updates the statistics of the attributes with a training instance.
+	 */
+	default void update(Instance instance) {
+	}
+
+	/**
+	 * Keeps what the kernel needs of a member of the window of the learner, such as its normalized row, until it is
+	 * removed. Instances that were not added are measured as well, only without being kept.
+	 */
+	default void add(Instance instance) {
+	}
+
+	/**
+	 * Forgets a member leaving the window of the learner.
+	 */
+	default void remove(Instance instance) {
+	}
+
+	/**
+	 * Creates the kernel of the metric for the representation of the instance. The normalizer is shared with and
+	 * updated by the learner.
+	 */
+	static DistanceKernel create(Metric metric, Instance instance, RangeNormalizer normalizer) {
+		return create(metric, instance, normalizer, null);
+	}
+
+	/**
+	 * Creates the kernel of the metric for the representation of the instance, over a subspace of the attributes
+	 * given in increasing order (null for all of them). Sparse kernels go through every stored value and leave out
+	 * the attributes outside the subspace by their empty ranges, which the learners never widen.
+	 */
+	static DistanceKernel create(Metric metric, Instance instance, RangeNormalizer normalizer, int[] attributes) {
+
+		if(instance.numValues() == instance.numAttributes()) {
+			if(metric == Metric.EUCLIDEAN)
+				return new DenseEuclideanKernel(normalizer, attributes);
+			return new DenseCosineKernel(normalizer, attributes);
+		}
+
+		// The input attributes are stored after the labels, or before them
+		int firstInput = instance.classIndex() == 0 ? instance.numOutputAttributes() : 0;
+		int endInput = instance.classIndex() == 0 ? instance.numAttributes() : instance.classIndex();
+
+		if(metric == Metric.EUCLIDEAN)
+			return new SparseEuclideanKernel(normalizer, firstInput, endInput);
+		return new SparseCosineKernel(normalizer, firstInput, endInput);
+	}
+}
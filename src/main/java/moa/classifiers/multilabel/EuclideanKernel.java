@@ -0,0 +1,130 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.function.IntFunction;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Euclidean distance over the attributes normalized by the ranges of a learner, with early abandoning.
+ * Given the distance of the current k-th nearest neighbour, a candidate is abandoned as soon as its partial sum exceeds it.
+ * The distances are computed by the dense or sparse DistanceKernel chosen from the first instance seen.
+ */
+public class EuclideanKernel implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private RangeNormalizer normalizer;
+
+	private DistanceKernel kernel;
+
+	private long numBounded;
+	private long numAbandoned;
+
+	private double[] best = new double[0];
+
+	/**
+	 * Creates a kernel normalizing by the given ranges, which are shared with and updated by the learner.
+	 */
+	public EuclideanKernel(RangeNormalizer normalizer) {
+		this.normalizer = normalizer;
+	}
+
+	private DistanceKernel kernel(Instance instance) {
+		if(kernel == null)
+			kernel = DistanceKernel.create(DistanceKernel.Metric.EUCLIDEAN, instance, normalizer);
+		return kernel;
+	}
+
+	/**
+	 * Updates the statistics of the attributes with a training instance.
+	 */
+	public void update(Instance instance) {
+		kernel(instance).update(instance);
+	}
+
+	/**
+	 * Keeps the normalized row of a member of the window until it is removed.
+	 */
+	public void add(Instance instance) {
+		kernel(instance).add(instance);
+	}
+
+	/**
+	 * Forgets a member leaving the window.
+	 */
+	public void remove(Instance instance) {
+		if(kernel != null)
+			kernel.remove(instance);
+	}
+
+	/**
+	 * Returns the distance between two instances.
+	 */
+	public double distance(Instance instance1, Instance instance2) {
+		return kernel(instance1).distance(instance1, instance2);
+	}
+
+	/**
+	 * Returns the distance between two instances, or infinity when it is certainly not smaller than the bound.
+	 */
+	public double distance(Instance instance1, Instance instance2, double bound) {
+
+		if(bound == Double.POSITIVE_INFINITY)
+			return distance(instance1, instance2);
+
+		numBounded++;
+		double distance = kernel(instance1).distance(instance1, instance2, bound);
+
+		if(distance == Double.POSITIVE_INFINITY)
+			numAbandoned++;
+
+		return distance;
+	}
+
+	/**
+	 * Computes the distances between the sample and n samples, abandoning those that cannot be among the k nearest.
+	 * Abandoned samples get an infinite distance, so the k smallest distances and their order are exact.
+	 * Samples ruled out by the lower bounds of the pivot table, if any, are not even computed.
+	 */
+	public void get1ToNDistances(Instance sample, IntFunction<Instance> samples, int n, int k, double[] distances, PivotTable pivots) {
+
+		if(best.length < k)
+			best = new double[k];
+
+		double[] pivotDistances = null;
+
+		if(pivots != null) {
+			pivots.ensure(samples, n, this::distance);
+			pivotDistances = pivots.queryDistances(sample, this::distance);
+		}
+
+		int size = 0;
+
+		for (int i = 0; i < n; i++) {
+			if(pivots != null && size == k && k > 0 && pivots.exceeds(pivotDistances, samples.apply(i), best[k - 1])) {
+				distances[i] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+
+			double distance = distance(sample, samples.apply(i), size < k || k == 0 ? Double.POSITIVE_INFINITY : best[k - 1]);
+			distances[i] = distance;
+
+			if(size < k || (k > 0 && distance < best[k - 1])) {
+				int j = size < k ? size++ : k - 1;
+				while (j > 0 && best[j - 1] > distance) {
+					best[j] = best[j - 1];
+					j--;
+				}
+				best[j] = distance;
+			}
+		}
+	}
+
+	/**
+	 * Returns the fraction of bounded distances abandoned before all the attributes were accumulated.
+	 */
+	public double getAbandonRate() {
+		return numBounded == 0 ? 0 : numAbandoned / (double) numBounded;
+	}
+}
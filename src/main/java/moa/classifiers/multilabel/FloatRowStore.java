@@ -0,0 +1,83 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Input attributes of the window of a learner, normalized by its ranges and stored as one float row per slot,
+ * plus a row for the query. The rows embed the instances as the int8 rows do, sparse ones by their stored values
+ * and 0 elsewhere. Attributes of empty range are stored as 0, so they do not add to the distances.
+ * The Euclidean distances are accumulated in float, or in double when mixed precision is chosen.
+ */
+public class FloatRowStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Slot of the query row. */
+	public static final int QUERY = -1;
+
+	private int numFeatures;
+	private boolean mixed;
+	private RowEmbedding embedding;
+	private double[] values;
+
+	private float[] rows;
+	private float[] query;
+
+	/**
+	 * Creates a store of the given number of slots, normalizing by the given ranges, which are shared with and
+	 * updated by the learner.
+	 */
+	public FloatRowStore(RangeNormalizer normalizer, int capacity, boolean mixed) {
+		this.numFeatures = normalizer.numAttributes();
+		this.mixed = mixed;
+		this.embedding = new RowEmbedding(normalizer);
+		this.values = new double[numFeatures];
+		this.rows = new float[capacity * numFeatures];
+		this.query = new float[numFeatures];
+	}
+
+	/**
+	 * Stores the normalized instance in the row of the slot.
+	 */
+	public void set(int slot, Instance instance) {
+		normalize(instance, rows, slot * numFeatures);
+	}
+
+	/**
+	 * Normalizes again every instance of the window, after the ranges changed. Null slots are skipped.
+	 */
+	public void setAll(Instance[] window) {
+		for (int slot = 0; slot < window.length; slot++)
+			if(window[slot] != null)
+				set(slot, window[slot]);
+	}
+
+	/**
+	 * Stores the normalized instance in the query row.
+	 */
+	public void setQuery(Instance instance) {
+		normalize(instance, query, 0);
+	}
+
+	private void normalize(Instance instance, float[] row, int offset) {
+		embedding.embed(instance, values);
+		for (int i = 0; i < numFeatures; i++)
+			row[offset + i] = (float) values[i];
+	}
+
+	/**
+	 * Returns the distance between the rows of two slots, either of which may be the query.
+	 */
+	public double distance(int slot1, int slot2) {
+		float[] rows1 = slot1 == QUERY ? query : rows;
+		float[] rows2 = slot2 == QUERY ? query : rows;
+		int offset1 = slot1 == QUERY ? 0 : slot1 * numFeatures;
+		int offset2 = slot2 == QUERY ? 0 : slot2 * numFeatures;
+
+		if(mixed)
+			return Math.sqrt(RowOperators.mixedSquaredDistance(rows1, offset1, rows2, offset2, numFeatures));
+		return Math.sqrt(RowOperators.squaredDistance(rows1, offset1, rows2, offset2, numFeatures));
+	}
+}
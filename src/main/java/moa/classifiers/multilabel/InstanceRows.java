@@ -0,0 +1,154 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.IdentityHashMap;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Input attributes of dense instances as primitive rows, normalized by the ranges of a learner or as they are
+ * without ranges, so that the distance loops go through RowOperators instead of reading the instances one value
+ * at a time. The members of a window keep their row until they are removed as many times as they were added, and
+ * normalize it again only when the ranges changed. Other instances, such as the queries, are normalized into one of
+ * two reusable rows, one per operand, which remember the instance they hold so that a scan normalizes its query once.
+ * An instance modified in place must be refreshed.
+ */
+public class InstanceRows implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final RangeNormalizer normalizer;
+	private final int[] attributes;
+	private final int length;
+
+	private final IdentityHashMap<Instance, Row> members = new IdentityHashMap<Instance, Row>();
+	private final Row[] operands;
+	private final Instance[] operandInstances = new Instance[2];
+
+	/**
+	 * Row of an instance with its squared norm, valid while its version matches the ranges.
+	 */
+	static final class Row implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final double[] values;
+		double squaredNorm;
+		long version = -1;
+		int references;
+
+		Row(int length) {
+			this.values = new double[length];
+		}
+	}
+
+	/**
+	 * Creates the rows of the given attributes in increasing order, or of all of them when null, normalized by the
+	 * given ranges, which are shared with and updated by the learner.
+	 */
+	public InstanceRows(RangeNormalizer normalizer, int[] attributes) {
+		this(normalizer, attributes, attributes != null ? attributes.length : normalizer.numAttributes());
+	}
+
+	/**
+	 * Creates the rows of the given number of input attributes, as they are.
+	 */
+	public InstanceRows(int numAttributes) {
+		this(null, null, numAttributes);
+	}
+
+	private InstanceRows(RangeNormalizer normalizer, int[] attributes, int length) {
+		this.normalizer = normalizer;
+		this.attributes = attributes;
+		this.length = length;
+		this.operands = new Row[] {new Row(length), new Row(length)};
+	}
+
+	/**
+	 * Returns the number of values of a row.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Keeps the row of a member until it is removed.
+	 */
+	public void add(Instance instance) {
+		Row row = members.get(instance);
+
+		if(row == null) {
+			row = new Row(length);
+			members.put(instance, row);
+		}
+		row.references++;
+	}
+
+	/**
+	 * Drops the row of a member once it is removed as many times as it was added. Other instances are ignored.
+	 */
+	public void remove(Instance instance) {
+		Row row = members.get(instance);
+
+		if(row != null && --row.references == 0)
+			members.remove(instance);
+	}
+
+	/**
+	 * Normalizes the instance again on its next use, after it was modified in place.
+	 */
+	public void refresh(Instance instance) {
+		Row row = members.get(instance);
+
+		if(row != null)
+			row.version = -1;
+
+		for (int operand = 0; operand < operands.length; operand++)
+			if(operandInstances[operand] == instance)
+				operandInstances[operand] = null;
+	}
+
+	/**
+	 * Forgets every member.
+	 */
+	public void clear() {
+		members.clear();
+		operandInstances[0] = null;
+		operandInstances[1] = null;
+	}
+
+	/**
+	 * Returns the row of the instance, the one of the member or else the reusable row of the operand (0 or 1),
+	 * normalized by the current ranges.
+	 */
+	Row row(Instance instance, int operand) {
+		Row row = members.get(instance);
+
+		if(row == null) {
+			row = operands[operand];
+			if(operandInstances[operand] != instance) {
+				operandInstances[operand] = instance;
+				row.version = -1;
+			}
+		}
+
+		long version = normalizer != null ? normalizer.getVersion() : 0;
+		if(row.version != version) {
+			load(instance, row);
+			row.version = version;
+		}
+
+		return row;
+	}
+
+	private void load(Instance instance, Row row) {
+		double[] values = row.values;
+
+		for (int a = 0; a < length; a++) {
+			int i = attributes != null ? attributes[a] : a;
+			values[a] = normalizer != null ? normalizer.normalize(i, instance.valueInputAttribute(i)) : instance.valueInputAttribute(i);
+		}
+
+		row.squaredNorm = RowOperators.dotProduct(values, 0, values, 0, length);
+	}
+}
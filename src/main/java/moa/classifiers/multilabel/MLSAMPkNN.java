@@ -28,6 +28,10 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 
 	public MultiChoiceOption metric = new MultiChoiceOption("metric", 'e', "Choose metric used to adjust memory", metrics, metrics, 0);
 
+	public IntOption numPivotsOption = new IntOption("numPivots", 'v', "The number of pivots used to skip distance computations (0 = disabled)", 0, 0, Integer.MAX_VALUE);
+
+	public IntOption rangeFreezeOption = new IntOption("rangeFreeze", 'z', "The number of training instances after which the ranges of the attributes are frozen (0 = never)", 0, 0, Integer.MAX_VALUE);
+
 	@Override
 	public String getPurposeString() {
 		return "Multi-label Punitive kNN with Self-Adjusting Memory for Drifting Data Streams";
@@ -36,18 +40,21 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 	private int numLabels;
 	private List<Instance> window;
 	private double[][] distanceMatrix;
-	private double[] attributeRangeMin;
-	private double[] attributeRangeMax;
+	private RangeNormalizer normalizer;
 	private Map<Integer, List<Integer>> predictionHistories;
 	private Map<Instance, Integer> errors;
+	private EuclideanKernel kernel;
+	private PivotTable pivots;
 
 	@Override
 	public void setModelContext(InstancesHeader context) {
 		try {
 			numLabels = context.numOutputAttributes();
 			window = new ArrayList<Instance>();
-			attributeRangeMin = new double[context.numInputAttributes()];
-			attributeRangeMax = new double[context.numInputAttributes()];
+			normalizer = new RangeNormalizer(context.numInputAttributes());
+			normalizer.setFreezeAfter(rangeFreezeOption.getValue());
+			kernel = new EuclideanKernel(normalizer);
+			pivots = numPivotsOption.getValue() > 0 ? new PivotTable(numPivotsOption.getValue()) : null;
 			distanceMatrix = new double[maxWindowSize.getValue()][maxWindowSize.getValue()];
 			predictionHistories = new HashMap<Integer, List<Integer>>();
 			errors = new HashMap<Instance, Integer>();
@@ -67,6 +74,9 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 			distanceMatrix = new double[maxWindowSize.getValue()][maxWindowSize.getValue()];
 			predictionHistories = new HashMap<Integer, List<Integer>>();
 			errors = new HashMap<Instance, Integer>();
+			kernel = new EuclideanKernel(normalizer);
+			if(pivots != null)
+				pivots = new PivotTable(numPivotsOption.getValue());
 		}
 	}
 
@@ -74,8 +84,17 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 	public void trainOnInstanceImpl(MultiLabelInstance inst) {
 
 		window.add(inst);
+		kernel.add(inst);
 
-		updateRanges(inst);
+		boolean rangesWidened = normalizer.update(inst);
+		kernel.update(inst);
+
+		if(pivots != null) {
+			if(rangesWidened)
+				pivots.invalidate();
+			else
+				pivots.add(inst, kernel::distance);
+		}
 
 		int windowSize = window.size();
 
@@ -104,16 +123,24 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 			}
 		}
 
-		for(Instance instance : discarded)
+		for(Instance instance : discarded) {
 			errors.remove(instance);
+			kernel.remove(instance);
+			if(pivots != null)
+				pivots.remove(instance);
+		}
 
 		int newWindowSize = getNewWindowSize();
 
 		if (newWindowSize < windowSize) {
 			int diff = windowSize - newWindowSize;
 
-			for (int i = 0; i < diff; i++)
+			for (int i = 0; i < diff; i++) {
 				errors.remove(window.get(i));
+				kernel.remove(window.get(i));
+				if(pivots != null)
+					pivots.remove(window.get(i));
+			}
 
 			window = window.subList(diff, windowSize);
 
@@ -129,6 +156,9 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 					distanceMatrix[i][j] = distanceMatrix[i+1][j+1];
 
 			errors.remove(window.get(0));
+			kernel.remove(window.get(0));
+			if(pivots != null)
+				pivots.remove(window.get(0));
 			window.remove(0);
 		}
 	}
@@ -142,7 +172,7 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 		MultiLabelPrediction prediction = new MultiLabelPrediction(instance.numberOutputTargets());
 
 		double distances[] = new double[window.size()];
-		get1ToNDistances(instance, window, distances);
+		kernel.get1ToNDistances(instance, window::get, window.size(), kOption.getValue(), distances, pivots);
 		int nnIndices[] = nArgMin(Math.min(distances.length, kOption.getValue()), distances);
 		prediction = getPrediction(nnIndices, window);
 
@@ -268,101 +298,7 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 	 * Returns the Euclidean distance.
 	 */
 	private double getDistance(Instance instance1, Instance instance2) {
-
-		double distance = 0;
-
-		if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
-		{
-			for(int i = 0; i < instance1.numInputAttributes(); i++)
-			{
-				double val1 = instance1.valueInputAttribute(i);
-				double val2 = instance2.valueInputAttribute(i);
-
-				if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-				{
-					val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					distance += (val1 - val2) * (val1 - val2);
-				}
-			}
-		}
-		else // Sparse Instance
-		{
-			int firstI = -1, secondI = -1;
-			int firstNumValues  = instance1.numValues();
-			int secondNumValues = instance2.numValues();
-			int numAttributes   = instance1.numAttributes();
-			int numOutputs      = instance1.numOutputAttributes();
-
-			for (int p1 = 0, p2 = 0; p1 < firstNumValues || p2 < secondNumValues;) {
-
-				if (p1 >= firstNumValues) {
-					firstI = numAttributes;
-				} else {
-					firstI = instance1.index(p1);
-				}
-
-				if (p2 >= secondNumValues) {
-					secondI = numAttributes;
-				} else {
-					secondI = instance2.index(p2);
-				}
-
-				if (firstI < numOutputs) {
-					p1++;
-					continue;
-				}
-
-				if (secondI < numOutputs) {
-					p2++;
-					continue;
-				}
-
-				if (firstI == secondI) {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						double val2 = instance2.valueSparse(p2);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1 - val2) * (val1 - val2);
-					}
-					p1++;
-					p2++;
-				} else if (firstI > secondI) {
-					int idx = secondI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val2 = instance2.valueSparse(p2);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val2) * (val2);
-					}
-					p2++;
-				} else {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1) * (val1);
-					}
-					p1++;
-				}
-			}
-		}
-
-		return Math.sqrt(distance);
-	}
-
-	private void updateRanges(MultiLabelInstance instance) {
-		for(int i = 0; i < instance.numInputAttributes(); i++)
-		{
-			if(instance.valueInputAttribute(i) < attributeRangeMin[i])
-				attributeRangeMin[i] = instance.valueInputAttribute(i);
-			if(instance.valueInputAttribute(i) > attributeRangeMax[i])
-				attributeRangeMax[i] = instance.valueInputAttribute(i);
-		}
+		return kernel.distance(instance1, instance2);
 	}
 
 	/**
@@ -456,7 +392,10 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
-		return null;
+		return new Measurement[] {
+				new Measurement("distance abandon rate", kernel != null ? kernel.getAbandonRate() : 0),
+				new Measurement("pivot prune rate", pivots != null ? pivots.getPruneRate() : 0)
+		};
 	}
 
 	@Override
@@ -35,6 +35,8 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 
 	public MultiChoiceOption metric = new MultiChoiceOption("metric", 'e', "Choose metric used to adjust memory", metrics, metrics, 1);
 
+	public IntOption rangeFreezeOption = new IntOption("rangeFreeze", 'z', "The number of training instances after which the ranges of the attributes are frozen (0 = never)", 0, 0, Integer.MAX_VALUE);
+
 	@Override
 	public String getPurposeString() {
 		return "Multi-label, self adjusting memory KNN";
@@ -57,9 +59,9 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 	private List<int[]> cmHistory;
 	private double[][] distanceMatrixSTM;
 	private Map<Integer, List<int[]>> predictionHistories;
-	private double[] attributeRangeMin;
-	private double[] attributeRangeMax;
+	private RangeNormalizer normalizer;
 	private Random random;
+	private EuclideanKernel kernel;
 
 	@Override
 	public void setModelContext(InstancesHeader context) {
@@ -69,8 +71,9 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 			this.stm.setClassIndex(context.classIndex());
 			this.ltm = new Instances(context,0);
 			this.ltm.setClassIndex(context.classIndex());
-			this.attributeRangeMin = new double[context.numInputAttributes()];
-			this.attributeRangeMax = new double[context.numInputAttributes()];
+			this.normalizer = new RangeNormalizer(context.numInputAttributes());
+			this.normalizer.setFreezeAfter(rangeFreezeOption.getValue());
+			this.kernel = new EuclideanKernel(this.normalizer);
 			this.distanceMatrixSTM = new double[limitOption.getValue()+1][limitOption.getValue()+1];
 			this.predictionHistories = new HashMap<>();
 			this.maxLTMSize = (int)(relativeLTMSizeOption.getValue() * limitOption.getValue());
@@ -132,7 +135,8 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 
 		this.stm.add(inst);
 
-		updateRanges(inst);
+		this.normalizer.update(inst);
+		this.kernel.update(inst);
 
 		/*
 		 * more print statements
@@ -239,13 +243,13 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 		double distancesLTM[];
 
 		if (this.stm != null && this.stm.numInstances() > 0) {
-			distancesSTM = get1ToNDistances(instance, this.stm);
+			distancesSTM = get1ToNDistances(instance, this.stm, this.kOption.getValue());
 			int nnIndicesSTM[] = nArgMin(Math.min(distancesSTM.length, this.kOption.getValue()), distancesSTM);
 			pSTM = getPrediction(nnIndicesSTM, this.stm);
 
 			if (this.ltm.numInstances() > 0) {
 
-				distancesLTM = get1ToNDistances(instance, this.ltm);
+				distancesLTM = get1ToNDistances(instance, this.ltm, this.kOption.getValue());
 				pCM = getCMPrediction(distancesSTM, this.stm, distancesLTM, this.ltm);
 				int nnIndicesLTM[] = nArgMin(Math.min(distancesLTM.length, this.kOption.getValue()), distancesLTM);
 				pLTM = getPrediction(nnIndicesLTM, this.ltm);
@@ -518,185 +522,23 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 	}
 
 	/**
-	 * Returns the Euclidean distance.
+	 * Returns the Euclidean distances between one sample and a collection of samples in an 1D-array,
+	 * abandoning those that cannot be among the k nearest (their distance is infinite).
 	 */
-	private double getDistance(Instance instance1, Instance instance2) {
-
-		//		REGULAR DISTANCE
-		//        for (int i = 0; i < instance1.numInputAttributes(); i++)
-		//            distance += (instance1.valueInputAttribute(i) - instance2.valueInputAttribute(i)) * (instance1.valueInputAttribute(i) - instance2.valueInputAttribute(i));
-
-		//		NORMALIZED DISTANCE
-		//        for(int i = 0; i < instance1.numInputAttributes(); i++)
-		//        {
-		//            double val1 = instance1.valueInputAttribute(i);
-		//            double val2 = instance2.valueInputAttribute(i);
-		//
-		//            if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-		//            {
-		//                val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-		//                val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-		//                distance += (val1 - val2) * (val1 - val2);
-		//            }
-		//        }
-
-		//		int firstI = -1, secondI = -1;
-		//		int firstNumValues  = instance1.numValues();
-		//		int secondNumValues = instance2.numValues();
-		//		int numAttributes   = instance1.numAttributes();
-		//		int numOutputs      = instance1.numOutputAttributes();
-		//
-		//		for (int p1 = 0, p2 = 0; p1 < firstNumValues || p2 < secondNumValues;) {
-		//
-		//			if (p1 >= firstNumValues) {
-		//				firstI = numAttributes;
-		//			} else {
-		//				firstI = instance1.index(p1);
-		//			}
-		//
-		//			if (p2 >= secondNumValues) {
-		//				secondI = numAttributes;
-		//			} else {
-		//				secondI = instance2.index(p2);
-		//			}
-		//
-		//			if (firstI < numOutputs) {
-		//				p1++;
-		//				continue;
-		//			}
-		//
-		//			if (secondI < numOutputs) {
-		//				p2++;
-		//				continue;
-		//			}
-		//
-		//			if (firstI == secondI) {
-		//				int idx = firstI - numOutputs;
-		//				if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-		//				{
-		//					double val1 = instance1.valueSparse(p1);
-		//					double val2 = instance2.valueSparse(p2);
-		//					val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-		//					val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-		//					distance += (val1 - val2) * (val1 - val2);
-		//				}
-		//				p1++;
-		//				p2++;
-		//			} else if (firstI > secondI) {
-		//				int idx = secondI - numOutputs;
-		//				if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-		//				{
-		//					double val2 = instance2.valueSparse(p2);
-		//					val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-		//					distance += (val2) * (val2);
-		//				}
-		//				p2++;
-		//			} else {
-		//				int idx = firstI - numOutputs;
-		//				if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-		//				{
-		//					double val1 = instance1.valueSparse(p1);
-		//					val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-		//					distance += (val1) * (val1);
-		//				}
-		//				p1++;
-		//			}
-		//		}
-
-		double distance = 0;
-
-		if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
-		{
-			for(int i = 0; i < instance1.numInputAttributes(); i++)
-			{
-				double val1 = instance1.valueInputAttribute(i);
-				double val2 = instance2.valueInputAttribute(i);
-
-				if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-				{
-					val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					distance += (val1 - val2) * (val1 - val2);
-				}
-			}
-		}
-		else // Sparse Instance
-		{
-			int firstI = -1, secondI = -1;
-			int firstNumValues  = instance1.numValues();
-			int secondNumValues = instance2.numValues();
-			int numAttributes   = instance1.numAttributes();
-			int numOutputs      = instance1.numOutputAttributes();
-
-			for (int p1 = 0, p2 = 0; p1 < firstNumValues || p2 < secondNumValues;) {
-
-				if (p1 >= firstNumValues) {
-					firstI = numAttributes;
-				} else {
-					firstI = instance1.index(p1);
-				}
+	private double[] get1ToNDistances(Instance sample, Instances samples, int k) {
 
-				if (p2 >= secondNumValues) {
-					secondI = numAttributes;
-				} else {
-					secondI = instance2.index(p2);
-				}
-
-				if (firstI < numOutputs) {
-					p1++;
-					continue;
-				}
+		double distances[] = new double[samples.numInstances()];
 
-				if (secondI < numOutputs) {
-					p2++;
-					continue;
-				}
+		this.kernel.get1ToNDistances(sample, samples::get, samples.numInstances(), k, distances, null);
 
-				if (firstI == secondI) {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						double val2 = instance2.valueSparse(p2);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1 - val2) * (val1 - val2);
-					}
-					p1++;
-					p2++;
-				} else if (firstI > secondI) {
-					int idx = secondI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val2 = instance2.valueSparse(p2);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val2) * (val2);
-					}
-					p2++;
-				} else {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1) * (val1);
-					}
-					p1++;
-				}
-			}
-		}
-
-		return Math.sqrt(distance);
+		return distances;
 	}
 
-	private void updateRanges(MultiLabelInstance instance) {
-		for(int i = 0; i < instance.numInputAttributes(); i++)
-		{
-			if(instance.valueInputAttribute(i) < attributeRangeMin[i])
-				attributeRangeMin[i] = instance.valueInputAttribute(i);
-			if(instance.valueInputAttribute(i) > attributeRangeMax[i])
-				attributeRangeMax[i] = instance.valueInputAttribute(i);
-		}
+	/**
+	 * Returns the Euclidean distance.
+	 */
+	private double getDistance(Instance instance1, Instance instance2) {
+		return this.kernel.distance(instance1, instance2);
 	}
 
 	/*
@@ -1073,10 +915,10 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 	private void cleanSingle(Instances cleanAgainst, int cleanAgainstindex, Instances toClean){
 		Instances cleanAgainstTmp = new Instances(cleanAgainst);
 		cleanAgainstTmp.delete(cleanAgainstindex);
-		double distancesSTM[] = get1ToNDistances(cleanAgainst.get(cleanAgainstindex), cleanAgainstTmp);
+		double distancesSTM[] = get1ToNDistances(cleanAgainst.get(cleanAgainstindex), cleanAgainstTmp, this.kOption.getValue());
 		int nnIndicesSTM[] = nArgMin(Math.min(this.kOption.getValue(), distancesSTM.length), distancesSTM);
 
-		double distancesLTM[] = get1ToNDistances(cleanAgainst.get(cleanAgainstindex), toClean);
+		double distancesLTM[] = get1ToNDistances(cleanAgainst.get(cleanAgainstindex), toClean, this.kOption.getValue());
 		int nnIndicesLTM[] = nArgMin(Math.min(this.kOption.getValue(), distancesLTM.length), distancesLTM);
 		double[] distThreshold = new double[numLabels];
 		for (int i = 0; i < numLabels; i++) {
@@ -1135,7 +977,9 @@ public class MLSAMkNN extends AbstractMultiLabelLearner implements MultiLabelCla
 
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
-		return null;
+		return new Measurement[] {
+				new Measurement("distance abandon rate", this.kernel != null ? this.kernel.getAbandonRate() : 0)
+		};
 	}
 
 	@Override
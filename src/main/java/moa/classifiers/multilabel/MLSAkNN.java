@@ -28,16 +28,23 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 	
 	public IntOption kHistorySize = new IntOption("kHistorySize", 'k', "The history length for determining K value", 100, 1, Integer.MAX_VALUE);
 
+	public IntOption numPivotsOption = new IntOption("numPivots", 'v', "The number of pivots used to skip distance computations (0 = disabled)", 0, 0, Integer.MAX_VALUE);
+
+	public IntOption rangeFreezeOption = new IntOption("rangeFreeze", 'z', "The number of training instances after which the ranges of the attributes are frozen (0 = never)", 0, 0, Integer.MAX_VALUE);
+
 	private int numLabels;
 	private int[] currentK;
 	private List<Integer>[][] KmetricHistory;
 	private List<Instance> window;
 	private double[][] distanceMatrix;
-	private double[] attributeRangeMin;
-	private double[] attributeRangeMax;
+	private RangeNormalizer normalizer;
 	private int[][] labelInstanceMask;
 	private Map<Integer, List<Integer>> predictionHistories;
 	private Map<Instance, Integer> errors;
+	private PivotTable pivots;
+	private transient PivotTable.Ranking ranking;
+	private transient int[] neighbours;
+	private DistanceKernel distanceKernel;
 	
 	@Override
 	public String getPurposeString() {
@@ -49,12 +56,14 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 		try {
 			numLabels = context.numOutputAttributes();
 			window = new ArrayList<Instance>();
-			attributeRangeMin = new double[context.numInputAttributes()];
-			attributeRangeMax = new double[context.numInputAttributes()];
+			normalizer = new RangeNormalizer(context.numInputAttributes());
+			normalizer.setFreezeAfter(rangeFreezeOption.getValue());
 			distanceMatrix = new double[maxWindowSize.getValue()][maxWindowSize.getValue()];
 			predictionHistories = new HashMap<Integer, List<Integer>>();
 			errors = new HashMap<Instance, Integer>();
 			labelInstanceMask = new int[maxWindowSize.getValue()][numLabels];
+			pivots = numPivotsOption.getValue() > 0 ? new PivotTable(numPivotsOption.getValue()) : null;
+			distanceKernel = null;
 
 			currentK = new int[numLabels];
 			for(int i = 0; i < numLabels; i++)
@@ -81,6 +90,8 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 			predictionHistories = new HashMap<Integer, List<Integer>>();
 			errors = new HashMap<Instance, Integer>();
 			labelInstanceMask = new int[maxWindowSize.getValue()][numLabels];
+			pivots = numPivotsOption.getValue() > 0 ? new PivotTable(numPivotsOption.getValue()) : null;
+			distanceKernel = null;
 
 			currentK = new int[numLabels];
 			for(int i = 0; i < numLabels; i++)
@@ -99,8 +110,16 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 		System.out.println("Training: " + inst);
 
 		window.add(inst);
+		kernel(inst).add(inst);
+
+		boolean rangesWidened = normalizer.update(inst);
 
-		updateRanges(inst);
+		if(pivots != null) {
+			if(rangesWidened)
+				pivots.invalidate();
+			else
+				pivots.add(inst, this::getDistance);
+		}
 
 		for(int l = 0; l < numLabels; l++)
 			labelInstanceMask[window.size()-1][l] = 1;
@@ -135,16 +154,24 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 			}
 		}
 
-		for(Instance instance : discarded)
+		for(Instance instance : discarded) {
 			errors.remove(instance);
+			distanceKernel.remove(instance);
+			if(pivots != null)
+				pivots.remove(instance);
+		}
 
 		int newWindowSize = getNewWindowSize();
 
 		if (newWindowSize < windowSize) {
 			int diff = windowSize - newWindowSize;
 
-			for (int i = 0; i < diff; i++)
+			for (int i = 0; i < diff; i++) {
 				errors.remove(window.get(i));
+				distanceKernel.remove(window.get(i));
+				if(pivots != null)
+					pivots.remove(window.get(i));
+			}
 
 			window = window.subList(diff, windowSize);
 
@@ -166,6 +193,9 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 				labelInstanceMask[i] = labelInstanceMask[i+1];
 
 			errors.remove(window.get(0));
+			distanceKernel.remove(window.get(0));
+			if(pivots != null)
+				pivots.remove(window.get(0));
 			window.remove(0);
 		}
 	}
@@ -178,32 +208,28 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 
 		MultiLabelPrediction prediction = new MultiLabelPrediction(numLabels);
 
-		double[] distances = new double[window.size()];
-
-		for (int i = 0; i < window.size(); i++)
-			distances[i] = getDistance(instance, window.get(i));
+		// Neighbours are ranked once for all the labels, and only as far as the labels walk
+		if(ranking == null)
+			ranking = new PivotTable.Ranking();
+		ranking.rank(pivots, instance, window::get, window.size(), this::getDistance);
+		// Grown with the window, as the buffers of the ranking
+		if(neighbours == null || neighbours.length < window.size())
+			neighbours = new int[window.size()];
+		int numRanked = 0;
 
 		for(int j = 0; j < numLabels; j++)
 		{
 			int positives = 0;
 			int totalVotes = 0;
-			double[] distancesLocal = distances.clone();
 			boolean modify = true;
 			boolean[] added = new boolean[KmetricHistory.length];
 
-			for(int n = 0; n < distancesLocal.length; n++) {
-
-				double minDistance = Double.MAX_VALUE;
-				int closestNeighbor = 0;
+			for(int n = 0; n < window.size(); n++) {
 
-				for(int nn = 0; nn < distancesLocal.length; nn++) {
-					if(distancesLocal[nn] <= minDistance) {
-						minDistance = distancesLocal[nn];
-						closestNeighbor = nn;
-					}
-				}
+				if(n == numRanked)
+					neighbours[numRanked++] = ranking.next();
 
-				distancesLocal[closestNeighbor] = Double.MAX_VALUE;
+				int closestNeighbor = neighbours[n];
 
 				boolean enter = false;
 
@@ -371,104 +397,23 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 	}
 
 	/**
-	 * Returns the Euclidean distance.
+	 * Returns the kernel, chosen for the representation of the first instance seen. It is created with the window
+	 * empty, so it keeps every member.
 	 */
-	private double getDistance(Instance instance1, Instance instance2) {
-
-		double distance = 0;
-
-		if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
-		{
-			for(int i = 0; i < instance1.numInputAttributes(); i++)
-			{
-				double val1 = instance1.valueInputAttribute(i);
-				double val2 = instance2.valueInputAttribute(i);
-
-				if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-				{
-					val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					distance += (val1 - val2) * (val1 - val2);
-				}
-			}
-		}
-		else // Sparse Instance
-		{
-			int firstI = -1, secondI = -1;
-			int firstNumValues  = instance1.numValues();
-			int secondNumValues = instance2.numValues();
-			int numAttributes   = instance1.numAttributes();
-			int numOutputs      = instance1.numOutputAttributes();
-
-			for (int p1 = 0, p2 = 0; p1 < firstNumValues || p2 < secondNumValues;) {
-
-				if (p1 >= firstNumValues) {
-					firstI = numAttributes;
-				} else {
-					firstI = instance1.index(p1);
-				}
-
-				if (p2 >= secondNumValues) {
-					secondI = numAttributes;
-				} else {
-					secondI = instance2.index(p2);
-				}
-
-				if (firstI < numOutputs) {
-					p1++;
-					continue;
-				}
+	private DistanceKernel kernel(Instance instance) {
 
-				if (secondI < numOutputs) {
-					p2++;
-					continue;
-				}
-
-				if (firstI == secondI) {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						double val2 = instance2.valueSparse(p2);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1 - val2) * (val1 - val2);
-					}
-					p1++;
-					p2++;
-				} else if (firstI > secondI) {
-					int idx = secondI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val2 = instance2.valueSparse(p2);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val2) * (val2);
-					}
-					p2++;
-				} else {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1) * (val1);
-					}
-					p1++;
-				}
-			}
-		}
+		if(distanceKernel == null)
+			distanceKernel = DistanceKernel.create(DistanceKernel.Metric.EUCLIDEAN, instance, normalizer);
 
-		return Math.sqrt(distance);
+		return distanceKernel;
 	}
 
-	private void updateRanges(MultiLabelInstance instance) {
-		for(int i = 0; i < instance.numInputAttributes(); i++)
-		{
-			if(instance.valueInputAttribute(i) < attributeRangeMin[i])
-				attributeRangeMin[i] = instance.valueInputAttribute(i);
-			if(instance.valueInputAttribute(i) > attributeRangeMax[i])
-				attributeRangeMax[i] = instance.valueInputAttribute(i);
-		}
+	/**
+	 * Returns the Euclidean distance, by the kernel chosen for the representation of the first instance.
+	 */
+	private double getDistance(Instance instance1, Instance instance2) {
+
+		return kernel(instance1).distance(instance1, instance2);
 	}
 
 	/**
@@ -621,7 +566,9 @@ public class MLSAkNN extends AbstractMultiLabelLearner implements MultiLabelClas
 
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
-		return null;
+		return new Measurement[] {
+				new Measurement("pivot prune rate", pivots != null ? pivots.getPruneRate() : 0)
+		};
 	}
 
 	@Override
@@ -30,23 +30,28 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 	public IntOption kHistorySize = new IntOption("kHistorySize", 'k', "The history length for determining K value", 1000, 1, Integer.MAX_VALUE);
 	
 	public FloatOption percentageFeaturesMean = new FloatOption("percentageFeaturesMean", 'u', "Mean for percentage of featues selected", 0.7, 0, 1);
+
+	public IntOption rangeFreezeOption = new IntOption("rangeFreeze", 'z', "The number of training instances after which the ranges of the attributes are frozen (0 = never)", 0, 0, Integer.MAX_VALUE);
 	
 	public PrequentialMultiLabelPerformanceEvaluator evaluator;
 	
 	public boolean[] listAttributes;
 
-	public InstancesHeader instanceHeader;
+	public int[] selectedAttributes;
 
 	private int numLabels;
 	private int[] currentK;
 	private List<Double>[][] KmetricHistory;
-	private List<Instance> window;
+	private SharedInstanceStore store;
+	private int[] windowSlots;
+	private double[] windowWeights;
+	private double[] windowErrors;
+	private int windowSize;
 	private double[][] distanceMatrix;
-	private double[] attributeRangeMin;
-	private double[] attributeRangeMax;
+	private RangeNormalizer normalizer;
+	private DistanceKernel distanceKernel;
 	private int[][] labelInstanceMask;
 	private Map<Integer, List<Integer>> predictionHistories;
-	private Map<Instance, Double> errors;
 	
 	@Override
 	public String getPurposeString() {
@@ -59,12 +64,18 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 		try {
 			evaluator = new PrequentialMultiLabelPerformanceEvaluator();
 			numLabels = context.numOutputAttributes();
-			window = new ArrayList<Instance>();
-			attributeRangeMin = new double[context.numInputAttributes()];
-			attributeRangeMax = new double[context.numInputAttributes()];
+			releaseSharedInstances();
+			if(store == null)
+				store = new SharedInstanceStore();
+			windowSlots = new int[maxWindowSize.getValue()];
+			windowWeights = new double[maxWindowSize.getValue()];
+			windowErrors = new double[maxWindowSize.getValue()];
+			windowSize = 0;
+			normalizer = new RangeNormalizer(context.numInputAttributes());
+			normalizer.setFreezeAfter(rangeFreezeOption.getValue());
+			distanceKernel = null;
 			distanceMatrix = new double[maxWindowSize.getValue()][maxWindowSize.getValue()];
 			predictionHistories = new HashMap<Integer, List<Integer>>();
-			errors = new HashMap<Instance, Double>();
 			labelInstanceMask = new int[maxWindowSize.getValue()][numLabels];
 
 			currentK = new int[numLabels];
@@ -85,99 +96,104 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 
 	@Override
 	public void resetLearningImpl() {
-		if(window != null)
+		if(windowSlots != null)
 		{
 			evaluator = new PrequentialMultiLabelPerformanceEvaluator();
-			window.clear();
-			distanceMatrix = new double[maxWindowSize.getValue()][maxWindowSize.getValue()];
-			predictionHistories = new HashMap<Integer, List<Integer>>();
-			errors = new HashMap<Instance, Double>();
-			labelInstanceMask = new int[maxWindowSize.getValue()][numLabels];
+			releaseSharedInstances();
+
+			// Buffers are reused, rows of the window are overwritten as instances arrive
+			predictionHistories.clear();
 
-			currentK = new int[numLabels];
 			for(int i = 0; i < numLabels; i++)
 				currentK[i] = 3;
 
-			KmetricHistory = new ArrayList[4][numLabels]; // 1, 3, 5, 7 per label
 			for(int i = 0; i < 4; i++)
 				for(int j = 0; j < numLabels; j++)
-					KmetricHistory[i][j] = new ArrayList<Double>();
+					KmetricHistory[i][j].clear();
 		}
 	}
 
-	@Override
-	public void trainOnInstanceImpl(MultiLabelInstance originalInst) {
-		
-		if(this.listAttributes == null) {
-			setupListAttributes(originalInst);
-		}
-		
-		MultiLabelInstance inst = (MultiLabelInstance) originalInst.copy();
+	/**
+	 * Forgets the subspace and the attribute ranges, so that they are drawn again from the next instance as in a fresh copy.
+	 */
+	public void resetSubspace() {
+		listAttributes = null;
+		selectedAttributes = null;
+		distanceKernel = null;
+		if(normalizer != null)
+			normalizer.reset();
+	}
 
-		for(int att = inst.numInputAttributes()-1; att >= 0; att--) {
-			if(this.listAttributes[att] == false) {
-				inst.deleteAttributeAt(inst.numOutputAttributes() + att);	
-			}
-		}
+	/**
+	 * Makes the learner keep its window in the given store, shared with other learners.
+	 */
+	public void setSharedStore(SharedInstanceStore store) {
+		releaseSharedInstances();
+		this.store = store;
+	}
 
-		inst.setDataset(instanceHeader);
+	/**
+	 * Releases the instances of the window from the store, leaving the window empty.
+	 */
+	public void releaseSharedInstances() {
+		if(windowSlots != null)
+			removeFromWindow(0, windowSize);
+	}
 
-		window.add(inst);
+	@Override
+	public void trainOnInstanceImpl(MultiLabelInstance inst) {
+		int slot = store.add(inst);
+		trainOnSharedInstance(slot, inst.weight());
+		store.release(slot);
+	}
+
+	/**
+	 * Trains on the instance held by the given slot of the store, using the given weight for it.
+	 */
+	public void trainOnSharedInstance(int slot, double weight) {
 
-		updateRanges(inst);
+		Instance inst = store.get(slot);
 
-		for(int l = 0; l < numLabels; l++)
-			labelInstanceMask[window.size()-1][l] = 1;
+		if(this.listAttributes == null) {
+			setupListAttributes(inst);
+		}
+
+		kernel(inst).add(inst);
+		store.retain(slot);
+		windowSlots[windowSize] = slot;
+		windowWeights[windowSize] = weight;
+		windowErrors[windowSize] = 0;
+		windowSize++;
 
-		int windowSize = window.size();
+		normalizer.update(inst, selectedAttributes);
 
-		get1ToNDistances(inst, window, distanceMatrix[windowSize-1]);
+		for(int l = 0; l < numLabels; l++)
+			labelInstanceMask[windowSize-1][l] = 1;
 
-		List<Instance> discarded = new ArrayList<Instance>();
+		get1ToNDistances(inst, distanceMatrix[windowSize-1]);
 
-		for(Map.Entry<Instance, Double> entry : errors.entrySet())
+		for(int idx = windowSize-1; idx >= 0; idx--)
 		{
-			if(entry.getValue() > penalty.getValue() * numLabels)
+			if(windowErrors[idx] > penalty.getValue() * numLabels)
 			{
-				for(int idx = windowSize-1; idx >= 0; idx--)
-				{
-					if(window.get(idx) == entry.getKey())
-					{
-						for (int i = idx; i < windowSize-1; i++)
-							for (int j = idx; j < i; j++)
-								distanceMatrix[i][j] = distanceMatrix[i+1][j+1];
-
-						for (int i = idx; i < windowSize-1; i++)
-							labelInstanceMask[i] = labelInstanceMask[i+1];
-
-						discarded.add(window.get(idx));
-						window.remove(idx);
-						windowSize--;
-						break;
-					}
-				}
+				for (int i = idx; i < windowSize-1; i++)
+					for (int j = idx; j < i; j++)
+						distanceMatrix[i][j] = distanceMatrix[i+1][j+1];
+
+				removeFromWindow(idx, 1);
 			}
 		}
 
-		for(Instance instance : discarded)
-			errors.remove(instance);
-
 		int newWindowSize = getNewWindowSize();
 
 		if (newWindowSize < windowSize) {
 			int diff = windowSize - newWindowSize;
 
-			for (int i = 0; i < diff; i++)
-				errors.remove(window.get(i));
-
-			window = window.subList(diff, windowSize);
-
 			for (int i = 0; i < newWindowSize; i++)
 				for (int j = 0; j < i; j++)
 					distanceMatrix[i][j] = distanceMatrix[diff+i][diff+j];
 
-			for (int i = 0; i < newWindowSize; i++)
-				labelInstanceMask[i] = labelInstanceMask[diff+i];
+			removeFromWindow(0, diff);
 		}
 
 		if (newWindowSize == maxWindowSize.getValue()) {
@@ -186,40 +202,53 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 				for (int j = 0; j < i; j++)
 					distanceMatrix[i][j] = distanceMatrix[i+1][j+1];
 
-			for (int i = 0; i < newWindowSize-1; i++)
-				labelInstanceMask[i] = labelInstanceMask[i+1];
+			removeFromWindow(0, 1);
+		}
+	}
 
-			errors.remove(window.get(0));
-			window.remove(0);
+	/**
+	 * Removes count instances of the window starting at the given position, releasing their slots.
+	 * The label mask rows of the removed instances are rotated to the end, so that no row is shared.
+	 */
+	private void removeFromWindow(int from, int count) {
+
+		for (int i = from; i < from + count; i++) {
+			if(distanceKernel != null)
+				distanceKernel.remove(instanceAt(i));
+			store.release(windowSlots[i]);
 		}
+
+		System.arraycopy(windowSlots, from + count, windowSlots, from, windowSize - from - count);
+		System.arraycopy(windowWeights, from + count, windowWeights, from, windowSize - from - count);
+		System.arraycopy(windowErrors, from + count, windowErrors, from, windowSize - from - count);
+
+		int[][] removedMaskRows = Arrays.copyOfRange(labelInstanceMask, from, from + count);
+		System.arraycopy(labelInstanceMask, from + count, labelInstanceMask, from, windowSize - from - count);
+		System.arraycopy(removedMaskRows, 0, labelInstanceMask, windowSize - count, count);
+
+		windowSize -= count;
+	}
+
+	private Instance instanceAt(int idx) {
+		return store.get(windowSlots[idx]);
 	}
 
 	/**
 	 * Predicts the label of a given sample
 	 */
 	@Override
-	public Prediction getPredictionForInstance(MultiLabelInstance originalInstance) {
+	public Prediction getPredictionForInstance(MultiLabelInstance instance) {
 		
 		if(this.listAttributes == null) {
-			setupListAttributes(originalInstance);
+			setupListAttributes(instance);
 		}
-		
-		MultiLabelInstance instance = (MultiLabelInstance) originalInstance.copy();
-
-		for(int att = originalInstance.numInputAttributes()-1; att >= 0; att--) {
-			if(this.listAttributes[att] == false) {
-				instance.deleteAttributeAt(originalInstance.numOutputAttributes() + att);	
-			}
-		}
-
-		instance.setDataset(instanceHeader);
 
 		MultiLabelPrediction prediction = new MultiLabelPrediction(numLabels);
 
-		double[] distances = new double[window.size()];
+		double[] distances = new double[windowSize];
 
-		for (int i = 0; i < window.size(); i++)
-			distances[i] = getDistance(instance, window.get(i));
+		for (int i = 0; i < windowSize; i++)
+			distances[i] = getDistance(instance, instanceAt(i));
 
 		for(int j = 0; j < numLabels; j++)
 		{
@@ -247,27 +276,21 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 				boolean enter = false;
 
 				if(labelInstanceMask[closestNeighbor][j] == 1) {
-					if(window.get(closestNeighbor).classValue(j) == 1)
-						positives += window.get(closestNeighbor).weight();
+					if(instanceAt(closestNeighbor).classValue(j) == 1)
+						positives += windowWeights[closestNeighbor];
 
 					totalVotes++;
-					totalVotesSum += window.get(closestNeighbor).weight();
+					totalVotesSum += windowWeights[closestNeighbor];
 					enter = true;
 
 					// If prediction was misleading, then disable the labelinstance
-					if(modify && window.get(closestNeighbor).classValue(j) != instance.classValue(j)) {
+					if(modify && instanceAt(closestNeighbor).classValue(j) != instance.classValue(j)) {
 						labelInstanceMask[closestNeighbor][j] = 0;
-
-						Double instanceErrors = errors.remove(window.get(closestNeighbor));
-
-						if(instanceErrors == null)
-							errors.put(window.get(closestNeighbor), new Double(instance.weight()));
-						else
-							errors.put(window.get(closestNeighbor), instanceErrors.intValue() + instance.weight());
+						windowErrors[closestNeighbor] = (int) windowErrors[closestNeighbor] + instance.weight();
 					}
 				} else {
 					// If labelinstance was disabled but it would had been a good prediction then reenable
-					if(modify && window.get(closestNeighbor).classValue(j) == instance.classValue(j)) {
+					if(modify && instanceAt(closestNeighbor).classValue(j) == instance.classValue(j)) {
 						labelInstanceMask[closestNeighbor][j] = 1;
 					}
 				}
@@ -402,113 +425,36 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 	}
 
 	/**
-	 * Computes the Euclidean distance between one sample and a collection of samples in an 1D-array.
+	 * Computes the Euclidean distance between one sample and the samples of the window in an 1D-array.
 	 */
-	private void get1ToNDistances(Instance sample, List<Instance> samples, double[] distances) {
+	private void get1ToNDistances(Instance sample, double[] distances) {
 
-		for (int i = 0; i < samples.size(); i++)
-			distances[i] = getDistance(sample, samples.get(i));
+		for (int i = 0; i < windowSize; i++)
+			distances[i] = getDistance(sample, instanceAt(i));
 	}
 
 	/**
-	 * Returns the Euclidean distance.
+	 * Returns the kernel of the subspace, chosen for the representation of the given instance when the subspace
+	 * changed. A new kernel keeps the members already in the window.
 	 */
-	private double getDistance(Instance instance1, Instance instance2) {
-
-		double distance = 0;
-
-		if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
-		{
-			for(int i = 0; i < instance1.numInputAttributes(); i++)
-			{
-				double val1 = instance1.valueInputAttribute(i);
-				double val2 = instance2.valueInputAttribute(i);
-
-				if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-				{
-					val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-					distance += (val1 - val2) * (val1 - val2);
-				}
-			}
-		}
-		else // Sparse Instance
-		{
-			int firstI = -1, secondI = -1;
-			int firstNumValues  = instance1.numValues();
-			int secondNumValues = instance2.numValues();
-			int numAttributes   = instance1.numAttributes();
-			int numOutputs      = instance1.numOutputAttributes();
-
-			for (int p1 = 0, p2 = 0; p1 < firstNumValues || p2 < secondNumValues;) {
+	private DistanceKernel kernel(Instance instance) {
 
-				if (p1 >= firstNumValues) {
-					firstI = numAttributes;
-				} else {
-					firstI = instance1.index(p1);
-				}
-
-				if (p2 >= secondNumValues) {
-					secondI = numAttributes;
-				} else {
-					secondI = instance2.index(p2);
-				}
-
-				if (firstI < numOutputs) {
-					p1++;
-					continue;
-				}
-
-				if (secondI < numOutputs) {
-					p2++;
-					continue;
-				}
-
-				if (firstI == secondI) {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						double val2 = instance2.valueSparse(p2);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1 - val2) * (val1 - val2);
-					}
-					p1++;
-					p2++;
-				} else if (firstI > secondI) {
-					int idx = secondI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val2 = instance2.valueSparse(p2);
-						val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val2) * (val2);
-					}
-					p2++;
-				} else {
-					int idx = firstI - numOutputs;
-					if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-					{
-						double val1 = instance1.valueSparse(p1);
-						val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-						distance += (val1) * (val1);
-					}
-					p1++;
-				}
-			}
+		if(distanceKernel == null) {
+			distanceKernel = DistanceKernel.create(DistanceKernel.Metric.EUCLIDEAN, instance, normalizer, selectedAttributes);
+			for (int i = 0; i < windowSize; i++)
+				distanceKernel.add(instanceAt(i));
 		}
 
-		return Math.sqrt(distance);
+		return distanceKernel;
 	}
 
-	private void updateRanges(MultiLabelInstance instance) {
-		for(int i = 0; i < instance.numInputAttributes(); i++)
-		{
-			if(instance.valueInputAttribute(i) < attributeRangeMin[i])
-				attributeRangeMin[i] = instance.valueInputAttribute(i);
-			if(instance.valueInputAttribute(i) > attributeRangeMax[i])
-				attributeRangeMax[i] = instance.valueInputAttribute(i);
-		}
+	/**
+	 * Returns the Euclidean distance in the subspace of the selected attributes. Sparse kernels leave the other
+	 * attributes out by their ranges, which are never widened.
+	 */
+	private double getDistance(Instance instance1, Instance instance2) {
+
+		return kernel(instance1).distance(instance1, instance2);
 	}
 
 	/**
@@ -516,7 +462,7 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 	 */
 	private int getNewWindowSize() {
 
-		int numSamples = window.size();
+		int numSamples = windowSize;
 		if (numSamples < 2 * minWindowSize.getValue())
 			return numSamples;
 		else {
@@ -537,9 +483,9 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 				int idx = numSamples - numSamplesIt;
 				List<Integer> predHistory;
 				if (predictionHistories.containsKey(idx))
-					predHistory = getIncrementalTestTrainPredHistory(window, idx, predictionHistories.get(idx));
+					predHistory = getIncrementalTestTrainPredHistory(idx, predictionHistories.get(idx));
 				else
-					predHistory = getTestTrainPredHistory(window, idx);
+					predHistory = getTestTrainPredHistory(idx);
 
 				predictionHistories.put(idx, predHistory);
 
@@ -590,16 +536,16 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 	/**
 	 * Returns the votes for each label.
 	 */
-	private double[] getPrediction(int[] nnIndices, List<Instance> instances, int j) {
+	private double[] getPrediction(int[] nnIndices, int j) {
 
 		double count = 0;
 		double sum = 0;
 
 		for (int nnIdx : nnIndices) {
-			if(instances.get(nnIdx).classValue(j) == 1) 
-				count += instances.get(nnIdx).weight();
+			if(instanceAt(nnIdx).classValue(j) == 1) 
+				count += windowWeights[nnIdx];
 			
-			sum += instances.get(nnIdx).weight();
+			sum += windowWeights[nnIdx];
 		}
 
 		double relativeFrequency = count / sum;
@@ -610,20 +556,20 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 	/**
 	 * Creates a prediction history from the scratch.
 	 */
-	private List<Integer> getTestTrainPredHistory(List<Instance> instances, int startIdx) {
+	private List<Integer> getTestTrainPredHistory(int startIdx) {
 
 		List<Integer> predictionHistory = new ArrayList<Integer>();
 
-		for (int i = startIdx; i < instances.size(); i++) {
+		for (int i = startIdx; i < windowSize; i++) {
 
 			MultiLabelPrediction prediction = new MultiLabelPrediction(numLabels);
 
 			for(int l = 0; l < numLabels; l++) {
 				int nnIndices[] = nArgMin(Math.min(currentK[l], i - startIdx), distanceMatrix[i], startIdx, i-1 ,l);
-				prediction.setVotes(l, getPrediction(nnIndices, instances, l));
+				prediction.setVotes(l, getPrediction(nnIndices, l));
 			}
 
-			predictionHistory.add(getMetricSums(instances.get(i), prediction));
+			predictionHistory.add(getMetricSums(instanceAt(i), prediction));
 		}
 
 		return predictionHistory;
@@ -632,17 +578,17 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 	/**
 	 * Creates a prediction history incrementally by using the previous predictions.
 	 */
-	private List<Integer> getIncrementalTestTrainPredHistory(List<Instance> instances, int startIdx, List<Integer> predictionHistory) {
+	private List<Integer> getIncrementalTestTrainPredHistory(int startIdx, List<Integer> predictionHistory) {
 
-		for (int i = startIdx + predictionHistory.size(); i < instances.size(); i++) {
+		for (int i = startIdx + predictionHistory.size(); i < windowSize; i++) {
 			MultiLabelPrediction prediction = new MultiLabelPrediction(numLabels);
 
 			for(int l = 0; l < numLabels; l++) {
 				int nnIndices[] = nArgMin(Math.min(currentK[l], distanceMatrix[i].length), distanceMatrix[i], startIdx, i-1, l);
-				prediction.setVotes(l, getPrediction(nnIndices, instances, l));
+				prediction.setVotes(l, getPrediction(nnIndices, l));
 			}
 
-			predictionHistory.add(getMetricSums(instances.get(i), prediction));
+			predictionHistory.add(getMetricSums(instanceAt(i), prediction));
 		}
 
 		return predictionHistory;
@@ -676,7 +622,7 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 		return true;
 	}
 	
-	protected void setupListAttributes(MultiLabelInstance instance) {
+	protected void setupListAttributes(Instance instance) {
 		int numberAttributes = instance.numInputAttributes();
 		
 		int subspaceSize = (int) Math.round(this.percentageFeaturesMean.getValue() * numberAttributes + ((1.0 - this.percentageFeaturesMean.getValue()) * numberAttributes) * this.classifierRandom.nextGaussian() * 0.5);
@@ -688,7 +634,7 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 		}
 
 		this.listAttributes = new boolean[numberAttributes];
-		this.instanceHeader = new InstancesHeader(instance.dataset());
+		this.selectedAttributes = new int[subspaceSize];
 		
 		ArrayList<Integer> attributesPool = new ArrayList<Integer>();
 
@@ -700,12 +646,12 @@ public class MLSAkNNSubspaces extends AbstractMultiLabelLearner implements Multi
 			this.listAttributes[attributesPool.remove(this.classifierRandom.nextInt(attributesPool.size()))] = true;
 		}
 
-		for(int att = numberAttributes-1; att >= 0; att--) {
-			if(this.listAttributes[att] == false) {
-				this.instanceHeader.deleteAttributeAt(instance.numInputAttributes() + att);	
+		// Projection used by the distances, so that instances are never copied nor modified
+		for(int att = 0, a = 0; att < numberAttributes; att++) {
+			if(this.listAttributes[att]) {
+				this.selectedAttributes[a++] = att;
 			}
 		}
-		
-		this.instanceHeader.setClassIndex(Integer.MAX_VALUE); // FIXING ML CLASS INDEX AFTER DELETING ATTS
+		this.distanceKernel = null;
 	}
 }
\ No newline at end of file
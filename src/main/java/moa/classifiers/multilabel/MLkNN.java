@@ -1,10 +1,11 @@
 package moa.classifiers.multilabel;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
-import com.yahoo.labs.samoa.instances.Instances;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
 import com.yahoo.labs.samoa.instances.MultiLabelInstance;
 import com.yahoo.labs.samoa.instances.MultiLabelPrediction;
@@ -22,12 +23,30 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 
     public IntOption limitOption = new IntOption( "limit", 'w', "The maximum number of instances to store", 1000, 1, Integer.MAX_VALUE);
 
+    public IntOption numPivotsOption = new IntOption( "numPivots", 'v', "The number of pivots used to skip distance computations (0 = disabled, ignored with float rows or int8 codes)", 0, 0, Integer.MAX_VALUE);
+
+    private String[] precisions = {"double", "float", "mixed", "int8"};
+
+    public MultiChoiceOption precisionOption = new MultiChoiceOption( "precision", 'p', "Precision of the window features and distances: the instances in double, normalized float rows accumulated in float or in double, or int8 codes bounding the exact distances of the newest members and replacing the features of the others", precisions, precisions, 0);
+
+    public IntOption exactRowsOption = new IntOption( "exactRows", 'e', "The number of newest members whose instances are kept in int8 precision to compute exact distances, the older ones being measured by their codes unless outside frozen ranges (0 = all)", 100, 0, Integer.MAX_VALUE);
+
+    public IntOption auditPeriodOption = new IntOption( "auditPeriod", 'a', "Every how many predictions the float neighbours are checked against double precision (0 = never)", 100, 0, Integer.MAX_VALUE);
+
+    public IntOption rangeFreezeOption = new IntOption( "rangeFreeze", 'z', "The number of training instances after which the ranges of the attributes are frozen (0 = never)", 0, 0, Integer.MAX_VALUE);
+
     @Override
     public String getPurposeString() {
         return "Multi-label KNN";
     }
 
-    protected Instances window;
+    // Ring window, the instance at position p is stored in slot (headSlot + p) % capacity
+    protected Instance[] window;
+    protected int windowSize;
+
+    // Labels of the window members, packed in words of 64 bits per slot
+    private long[] labels;
+    private int labelWords;
 
     private double[] priorCounts; 	// count of training instances with label
     private double[] priorProb; 	// probability that training instance has label
@@ -35,22 +54,54 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
     private double[][] postProbZero;
 
     // CANO ADD
-    private double[] attributeRangeMin;
-    private double[] attributeRangeMax;
+    private RangeNormalizer normalizer;
 
     private int smooth = 1;
 
+    private Random random = new Random();
+
+    private EuclideanKernel kernel;
+
+    private PivotTable pivots;
+
+    private int[] queryNeighbours;
+    private double[] queryDistances;
+
+    // Float rows of the window, null in double precision
+    private FloatRowStore rows;
+    // Quantized rows of the window, skipping exact distances that cannot matter, null unless int8.
+    // Only the newest members keep their instance, the slots of the others are null
+    private ByteRowStore codes;
+    private long numPredictions;
+    private long numAuditedNeighbours;
+    private long numMismatchedNeighbours;
+    private int[] auditNeighbours;
+    private double[] auditDistances;
+
+    // Neighbourhoods of the window members, maintained incrementally and indexed by slot
+    private int capacity;
+    private int headSlot;
+    private int neighbourK;
+    private int[][] neighbourSlots;
+    private double[][] neighbourDistances;
+    private int[] numNeighbours;
+    private int[][] neighbourLabelCounts;
+    private int[][] reverseNeighbours;
+    private int[] numReverseNeighbours;
+    private boolean[] staleNeighbours;
+    private double[][] labelCountOne;
+    private double[][] labelCountZero;
+
     @Override
     public void setModelContext(InstancesHeader context) {
         try {
-            this.window = new Instances(context,0);
-            this.window.setClassIndex(context.classIndex());
-            this.attributeRangeMin = new double[context.numInputAttributes()];
-            this.attributeRangeMax = new double[context.numInputAttributes()];
+            this.normalizer = new RangeNormalizer(context.numInputAttributes());
+            this.normalizer.setFreezeAfter(rangeFreezeOption.getValue());
             this.priorCounts = new double[context.numOutputAttributes()];
             this.priorProb = new double[context.numOutputAttributes()];
             this.postProbOne = new double[context.numOutputAttributes()][kOption.getValue() + 1];
             this.postProbZero = new double[context.numOutputAttributes()][kOption.getValue() + 1];
+            initWindow(context.numOutputAttributes());
         } catch(Exception e) {
             System.err.println("Error: no Model Context available.");
             e.printStackTrace();
@@ -66,19 +117,61 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
     @Override
     public void trainOnInstanceImpl(MultiLabelInstance instance) {
         if (this.window == null) {
-            this.window = new Instances(instance.dataset());
+            initWindow(instance.numberOutputTargets());
         }
 
-        if (this.limitOption.getValue() <= this.window.numInstances()) {
-            deletePriorCounts(this.window.instance(0));
-            this.window.delete(0);
+        if (this.limitOption.getValue() <= this.windowSize) {
+            deletePriorCounts(this.headSlot);
+            removeNeighbourhood(this.headSlot);
+            if (this.pivots != null)
+                this.pivots.remove(this.window[this.headSlot]);
+            if (this.codes != null)
+                this.codes.remove(this.headSlot);
+            if (this.window[this.headSlot] != null)
+                this.kernel.remove(this.window[this.headSlot]);
+            this.window[this.headSlot] = null;
+            this.headSlot = (this.headSlot + 1) % this.capacity;
+            this.windowSize--;
         }
 
-        this.window.add(instance);
+        this.window[slotAt(this.windowSize)] = instance;
+        setLabels(slotAt(this.windowSize), instance);
+        this.windowSize++;
+        kernel.add(instance);
 
-        updateRanges(instance);
+        // Every distance changes when a range widens, never once the ranges are frozen
+        boolean rangesWidened = this.normalizer.update(instance);
+        kernel.update(instance);
+
+        if (this.rows != null) {
+            if (rangesWidened)
+                this.rows.setAll(this.window);
+            else
+                this.rows.set(slotAt(this.windowSize - 1), instance);
+        }
+
+        if (this.codes != null) {
+            if (rangesWidened)
+                this.codes.setAll(this.window);
+            else
+                this.codes.set(slotAt(this.windowSize - 1), instance);
+        }
+
+        if (this.pivots != null) {
+            if (rangesWidened)
+                this.pivots.invalidate();
+            else
+                this.pivots.add(instance, kernel::distance);
+        }
         updatePriorProb(instance);
-        updatePostProb(instance.numberOutputTargets());
+        updatePostProb(instance.numberOutputTargets(), rangesWidened);
+
+        // The codes of the member leaving the newest ones replace its features, unless they are clamped to frozen ranges
+        int exactRows = exactRowsOption.getValue();
+        if (this.codes != null && exactRows > 0 && this.windowSize > exactRows && !this.codes.isClamped(slotAt(this.windowSize - 1 - exactRows))) {
+            kernel.remove(this.window[slotAt(this.windowSize - 1 - exactRows)]);
+            this.window[slotAt(this.windowSize - 1 - exactRows)] = null;
+        }
     }
 
     @Override
@@ -86,15 +179,19 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
 
         MultiLabelPrediction prediction = new MultiLabelPrediction(instance.numberOutputTargets());
 
-        if (this.window != null && this.window.numInstances() > 0) {
-            Instances neighbours = kNearestNeighbours(instance, this.window, Math.min(kOption.getValue(), this.window.numInstances()), -1);
+        if (this.window != null && this.windowSize > 0) {
+            int k = Math.min(kOption.getValue(), this.windowSize);
+            int numNeighbours = kNearestNeighbours(instance, k, -1, queryNeighbours, queryDistances, false);
+
+            if (this.rows != null && auditPeriodOption.getValue() > 0 && ++this.numPredictions % auditPeriodOption.getValue() == 0)
+                auditNeighbours(instance, k, numNeighbours);
 
             for(int j = 0; j < instance.numberOutputTargets(); j++)
             {
                 int count = 0;
 
-                for(int i = 0; i < neighbours.numInstances(); i++) {
-                    if(neighbours.instance(i).classValue(j) == 1)
+                for(int i = 0; i < numNeighbours; i++) {
+                    if(hasLabel(queryNeighbours[i], j))
                         count++;
                 }
 
@@ -107,7 +204,7 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
                     prediction.setVotes(j, new double[] {1.0, 0.0});
                 else
                 {
-                    int idx = new Random().nextInt(2);
+                    int idx = random.nextInt(2);
                     prediction.setVotes(j, new double[] {0 == idx ? 1.0 : 0.0, 1 == idx ? 1.0 : 0.0});
                 }
             }
@@ -116,37 +213,26 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
         return prediction;
     }
 
-    private void deletePriorCounts(Instance deleted) {
-        for(int j = 0; j < deleted.numberOutputTargets(); j++)
-            priorCounts[j] = priorCounts[j] - deleted.classValue(j);
-    }
-
-    private void updateRanges(MultiLabelInstance instance) {
-        for(int i = 0; i < instance.numInputAttributes(); i++)
-        {
-            if(instance.valueInputAttribute(i) < attributeRangeMin[i])
-                attributeRangeMin[i] = instance.valueInputAttribute(i);
-            if(instance.valueInputAttribute(i) > attributeRangeMax[i])
-                attributeRangeMax[i] = instance.valueInputAttribute(i);
-        }
+    private void deletePriorCounts(int slot) {
+        for(int j = 0; j < priorCounts.length; j++)
+            if(hasLabel(slot, j))
+                priorCounts[j] = priorCounts[j] - 1;
     }
 
     private void updatePriorProb(Instance instance) {
         for(int j = 0; j < instance.numberOutputTargets(); j++)
         {
-            priorCounts[j] = priorCounts[j] + instance.classValue(j);
-            priorProb[j] = (smooth + priorCounts[j]) / (smooth * 2 + this.window.numInstances());
+            if(instance.classValue(j) == 1)
+                priorCounts[j] = priorCounts[j] + 1;
+            priorProb[j] = (smooth + priorCounts[j]) / (smooth * 2 + this.windowSize);
         }
     }
 
-    private void updatePostProb(int numLabels) {
+    private void updatePostProb(int numLabels, boolean rangesWidened) {
 
-        int k = Math.min(kOption.getValue(), this.window.numInstances() - 1);
+        int k = Math.min(kOption.getValue(), this.windowSize - 1);
 
-        double[][] labelCountOne = new double[numLabels][k + 1];
-        double[][] labelCountZero = new double[numLabels][k + 1];
-
-        if(this.window.numInstances() <= 1) {
+        if(this.windowSize <= 1) {
             for(int l = 0; l < numLabels; l++)
             {
                 for(int j = 0; j < k; j++)
@@ -155,28 +241,17 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
                     postProbZero[l][j] = 0.5;
                 }
             }
+            this.neighbourK = 0;
         }
         else
         {
-            for(int i = 0; i < this.window.numInstances(); i++)
-            {
-                Instances neighbours = kNearestNeighbours((MultiLabelInstance) this.window.instance(i), this.window, k, i);
-
-                for(int l = 0; l < numLabels; l++)
-                {
-                    int count = 0;
-
-                    for(int j = 0; j < neighbours.numInstances(); j++) {
-                        if(neighbours.instance(j).classValue(l) == 1)
-                            count++;
-                    }
+            // Neighbourhoods are only rebuilt from scratch when the distances or k change
+            if(rangesWidened || k != this.neighbourK)
+                rebuildNeighbourhoods(numLabels, k);
+            else
+                insertNeighbourhood(slotAt(this.windowSize - 1), k);
 
-                    if(this.window.instance(i).classValue(l) == 1)
-                        labelCountOne[l][count]++;
-                    else
-                        labelCountZero[l][count]++;
-                }
-            }
+            this.neighbourK = k;
 
             for(int l = 0; l < numLabels; l++)
             {
@@ -198,129 +273,379 @@ public class MLkNN extends AbstractMultiLabelLearner implements MultiLabelClassi
         }
     }
 
-    private Instances kNearestNeighbours(MultiLabelInstance instance, Instances window, int k, int index) {
-        double[] distances = new double[window.size()];
+    private void initWindow(int numLabels) {
+        int k = kOption.getValue();
+
+        this.capacity = limitOption.getValue();
+        this.window = new Instance[capacity];
+        this.kernel = new EuclideanKernel(this.normalizer);
+        this.windowSize = 0;
+        this.labelWords = (numLabels + 63) >>> 6;
+        this.labels = new long[capacity * labelWords];
+        this.headSlot = 0;
+        this.queryNeighbours = new int[k];
+        this.queryDistances = new double[k];
+        this.rows = precisionOption.getChosenIndex() == 1 || precisionOption.getChosenIndex() == 2 ? new FloatRowStore(normalizer, capacity, precisionOption.getChosenIndex() == 2) : null;
+        this.codes = precisionOption.getChosenIndex() == 3 ? new ByteRowStore(normalizer, capacity) : null;
+        // The pivot bounds are in the double metric, so they can't prune the float distances, nor measure the members kept as codes
+        this.pivots = numPivotsOption.getValue() > 0 && this.rows == null && this.codes == null ? new PivotTable(numPivotsOption.getValue()) : null;
+        this.numPredictions = 0;
+        this.numAuditedNeighbours = 0;
+        this.numMismatchedNeighbours = 0;
+        this.auditNeighbours = new int[k];
+        this.auditDistances = new double[k];
+        this.neighbourK = 0;
+        this.neighbourSlots = new int[capacity][k];
+        this.neighbourDistances = new double[capacity][k];
+        this.numNeighbours = new int[capacity];
+        this.neighbourLabelCounts = new int[capacity][numLabels];
+        this.reverseNeighbours = new int[capacity][k];
+        this.numReverseNeighbours = new int[capacity];
+        this.staleNeighbours = new boolean[capacity];
+        this.labelCountOne = new double[numLabels][k + 1];
+        this.labelCountZero = new double[numLabels][k + 1];
+    }
 
-        for(int i = 0; i < window.size(); i++) {
-            if(i == index)
-                distances[i] = Double.MAX_VALUE; //cheap way of not counting an instance itself a neighbor
-            else
-                distances[i] = distance(instance, window.instance(i));
+    int slotAt(int position) {
+        return (headSlot + position) % capacity;
+    }
+
+    /**
+     * Packs the labels of the instance, those equal to 1 being set, into the words of the slot.
+     */
+    private void setLabels(int slot, Instance instance) {
+        int offset = slot * labelWords;
+        Arrays.fill(labels, offset, offset + labelWords, 0L);
+
+        for(int j = 0; j < instance.numberOutputTargets(); j++)
+            if(instance.classValue(j) == 1)
+                labels[offset + (j >>> 6)] |= 1L << j;
+    }
+
+    private boolean hasLabel(int slot, int label) {
+        return (labels[slot * labelWords + (label >>> 6)] & (1L << label)) != 0;
+    }
+
+    /**
+     * Returns the slots of the neighbours of the member at the position of the window, nearest first.
+     */
+    int[] getNeighbours(int position) {
+        int slot = slotAt(position);
+        return Arrays.copyOf(neighbourSlots[slot], numNeighbours[slot]);
+    }
+
+    /**
+     * Computes the neighbourhoods of every member of the window and the label count tables from scratch.
+     */
+    private void rebuildNeighbourhoods(int numLabels, int k) {
+        for(int l = 0; l < numLabels; l++) {
+            Arrays.fill(labelCountOne[l], 0);
+            Arrays.fill(labelCountZero[l], 0);
         }
 
-        Instances neighbors = new Instances(window,0,0);
+        for(int p = 0; p < this.windowSize; p++) {
+            numReverseNeighbours[slotAt(p)] = 0;
+            staleNeighbours[slotAt(p)] = false;
+        }
 
-        for(int i = 0; i < k; i++)
-        {
-            double minDistance = Double.MAX_VALUE;
-            int minDistanceInstance = -1;
+        for(int p = 0; p < this.windowSize; p++)
+            findNeighbours(slotAt(p), k);
 
-            for(int j = 0; j < window.size(); j++)
-            {
-                if(distances[j] < minDistance)
-                {
-                    minDistance = distances[j];
-                    minDistanceInstance = j;
-                }
+        for(int p = 0; p < this.windowSize; p++) {
+            int slot = slotAt(p);
+            for(int i = 0; i < numNeighbours[slot]; i++)
+                addReverseNeighbour(neighbourSlots[slot][i], slot);
+            countNeighbourLabels(slot);
+            updateLabelCounts(slot, 1);
+        }
+    }
+
+    /**
+     * Retracts a member leaving the window. The members that had it as a neighbour are retracted too and marked as stale.
+     */
+    private void removeNeighbourhood(int slot) {
+        updateLabelCounts(slot, -1);
+
+        for(int i = 0; i < numNeighbours[slot]; i++)
+            removeReverseNeighbour(neighbourSlots[slot][i], slot);
+
+        for(int r = 0; r < numReverseNeighbours[slot]; r++) {
+            int member = reverseNeighbours[slot][r];
+
+            updateLabelCounts(member, -1);
+
+            for(int i = 0; i < numNeighbours[member]; i++)
+                if(neighbourSlots[member][i] != slot)
+                    removeReverseNeighbour(neighbourSlots[member][i], member);
+
+            staleNeighbours[member] = true;
+        }
+
+        numNeighbours[slot] = 0;
+        numReverseNeighbours[slot] = 0;
+    }
+
+    /**
+     * Adds the newest member of the window. Only the members it enters as a neighbour, and the stale ones, are updated.
+     */
+    private void insertNeighbourhood(int slot, int k) {
+        Instance instance = this.window[slot];
+        double[] pivotDistances = queryPivotDistances(instance);
+
+        numNeighbours[slot] = 0;
+        numReverseNeighbours[slot] = 0;
+        staleNeighbours[slot] = false;
+
+        if(codes != null)
+            codes.setQuery(instance);
+
+        for(int p = 0; p < this.windowSize - 1; p++) {
+            int member = slotAt(p);
+
+            // The distance is only needed if the new member may enter its neighbourhood or the other way round
+            double bound = numNeighbours[slot] < k ? Double.POSITIVE_INFINITY : neighbourDistances[slot][k - 1];
+            if(!staleNeighbours[member])
+                bound = Math.max(bound, neighbourDistances[member][k - 1]);
+
+            if(pivots != null && pivots.exceeds(pivotDistances, this.window[member], bound))
+                continue;
+
+            double distance;
+            if(this.rows != null)
+                distance = this.rows.distance(slot, member);
+            else if(this.codes != null)
+                distance = codedDistance(instance, slot, member, bound);
+            else
+                distance = kernel.distance(instance, this.window[member], bound);
+
+            if(numNeighbours[slot] < k || distance < neighbourDistances[slot][k - 1])
+                insertNeighbour(slot, member, distance, k);
+
+            // Ties keep the older neighbour, so the newest member must be strictly closer
+            if(!staleNeighbours[member] && distance < neighbourDistances[member][k - 1]) {
+                updateLabelCounts(member, -1);
+                removeReverseNeighbour(insertNeighbour(member, slot, distance, k), member);
+                addReverseNeighbour(slot, member);
+                countNeighbourLabels(member);
+                updateLabelCounts(member, 1);
             }
+        }
 
-            neighbors.add(window.instance(minDistanceInstance));
-            distances[minDistanceInstance] = Double.MAX_VALUE;
+        for(int i = 0; i < numNeighbours[slot]; i++)
+            addReverseNeighbour(neighbourSlots[slot][i], slot);
+        countNeighbourLabels(slot);
+        updateLabelCounts(slot, 1);
+
+        for(int p = 0; p < this.windowSize - 1; p++) {
+            int member = slotAt(p);
+
+            if(staleNeighbours[member]) {
+                findNeighbours(member, k);
+                for(int i = 0; i < numNeighbours[member]; i++)
+                    addReverseNeighbour(neighbourSlots[member][i], member);
+                countNeighbourLabels(member);
+                updateLabelCounts(member, 1);
+                staleNeighbours[member] = false;
+            }
         }
+    }
 
-        return neighbors;
+    private void findNeighbours(int slot, int k) {
+        numNeighbours[slot] = kNearestNeighbours(this.window[slot], k, slot, neighbourSlots[slot], neighbourDistances[slot], false);
     }
 
-    private double distance(MultiLabelInstance instance1, Instance instance2) {
-        double distance = 0;
+    /**
+     * Inserts a neighbour, newer than the current ones, in the sorted neighbourhood of a member.
+     * Returns the slot of the farthest neighbour dropped from a full neighbourhood, or -1.
+     */
+    private int insertNeighbour(int slot, int neighbour, double distance, int k) {
+        int dropped = insertSorted(neighbourSlots[slot], neighbourDistances[slot], numNeighbours[slot], k, neighbour, distance);
 
-        if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
-        {
-            for(int i = 0; i < instance1.numInputAttributes(); i++)
-            {
-                double val1 = instance1.valueInputAttribute(i);
-                double val2 = instance2.valueInputAttribute(i);
+        if(numNeighbours[slot] < k)
+            numNeighbours[slot]++;
 
-                if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-                {
-                    val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-                    val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-                    distance += (val1 - val2) * (val1 - val2);
-                }
+        return dropped;
+    }
+
+    /**
+     * Inserts a neighbour, newer than the size ones held in the sorted arrays, keeping at most k of them.
+     * Returns the slot of the farthest neighbour dropped from full arrays, or -1.
+     */
+    private static int insertSorted(int[] slots, double[] distances, int size, int k, int neighbour, double distance) {
+        int dropped = -1;
+        int i;
+
+        if(size < k) {
+            i = size;
+        } else {
+            dropped = slots[k - 1];
+            i = k - 1;
+        }
+
+        while(i > 0 && distances[i - 1] > distance) {
+            slots[i] = slots[i - 1];
+            distances[i] = distances[i - 1];
+            i--;
+        }
+
+        slots[i] = neighbour;
+        distances[i] = distance;
+
+        return dropped;
+    }
+
+    private void addReverseNeighbour(int slot, int member) {
+        if(numReverseNeighbours[slot] == reverseNeighbours[slot].length)
+            reverseNeighbours[slot] = Arrays.copyOf(reverseNeighbours[slot], 2 * reverseNeighbours[slot].length);
+
+        reverseNeighbours[slot][numReverseNeighbours[slot]++] = member;
+    }
+
+    private void removeReverseNeighbour(int slot, int member) {
+        for(int i = 0; i < numReverseNeighbours[slot]; i++) {
+            if(reverseNeighbours[slot][i] == member) {
+                reverseNeighbours[slot][i] = reverseNeighbours[slot][--numReverseNeighbours[slot]];
+                return;
             }
         }
-        else // Sparse Instance
-        {
-            int firstI = -1, secondI = -1;
-            int firstNumValues  = instance1.numValues();
-            int secondNumValues = instance2.numValues();
-            int numAttributes   = instance1.numAttributes();
-            int numOutputs      = instance1.numOutputAttributes();
-
-            for (int p1 = 0, p2 = 0; p1 < firstNumValues || p2 < secondNumValues;) {
-
-                if (p1 >= firstNumValues) {
-                    firstI = numAttributes;
-                } else {
-                    firstI = instance1.index(p1);
-                }
+    }
 
-                if (p2 >= secondNumValues) {
-                    secondI = numAttributes;
-                } else {
-                    secondI = instance2.index(p2);
-                }
+    private void countNeighbourLabels(int slot) {
+        for(int l = 0; l < neighbourLabelCounts[slot].length; l++) {
+            int count = 0;
 
-                if (firstI < numOutputs) {
-                    p1++;
-                    continue;
-                }
+            for(int i = 0; i < numNeighbours[slot]; i++)
+                if(hasLabel(neighbourSlots[slot][i], l))
+                    count++;
 
-                if (secondI < numOutputs) {
-                    p2++;
-                    continue;
-                }
+            neighbourLabelCounts[slot][l] = count;
+        }
+    }
 
-                if (firstI == secondI) {
-                    int idx = firstI - numOutputs;
-                    if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-                    {
-                        double val1 = instance1.valueSparse(p1);
-                        double val2 = instance2.valueSparse(p2);
-                        val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-                        val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-                        distance += (val1 - val2) * (val1 - val2);
-                    }
-                    p1++;
-                    p2++;
-                } else if (firstI > secondI) {
-                    int idx = secondI - numOutputs;
-                    if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-                    {
-                        double val2 = instance2.valueSparse(p2);
-                        val2 = (val2 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-                        distance += (val2) * (val2);
-                    }
-                    p2++;
-                } else {
-                    int idx = firstI - numOutputs;
-                    if(attributeRangeMax[idx] - attributeRangeMin[idx] != 0)
-                    {
-                        double val1 = instance1.valueSparse(p1);
-                        val1 = (val1 - attributeRangeMin[idx]) / (attributeRangeMax[idx] - attributeRangeMin[idx]);
-                        distance += (val1) * (val1);
-                    }
-                    p1++;
-                }
+    /**
+     * Adds (sign 1) or retracts (sign -1) the contribution of a member to the label count tables.
+     */
+    private void updateLabelCounts(int slot, int sign) {
+        for(int l = 0; l < neighbourLabelCounts[slot].length; l++) {
+            if(hasLabel(slot, l))
+                labelCountOne[l][neighbourLabelCounts[slot][l]] += sign;
+            else
+                labelCountZero[l][neighbourLabelCounts[slot][l]] += sign;
+        }
+    }
+
+    /**
+     * Returns the distances from the instance to the pivots, rebuilding the pivot table if needed, or null without pivots.
+     */
+    private double[] queryPivotDistances(Instance instance) {
+        if(pivots == null)
+            return null;
+
+        pivots.ensure(p -> this.window[slotAt(p)], this.windowSize, kernel::distance);
+
+        return pivots.queryDistances(instance, kernel::distance);
+    }
+
+    /**
+     * Writes the slots of the k nearest neighbours of the instance, sorted by distance, into the given arrays.
+     * Ties are broken in favour of the oldest instances. Returns the number of neighbours found.
+     * The instance is the member of the excluded slot, if any, and is null when the member is only kept as codes.
+     * Distances are taken from the float rows if kept, unless exact ones are asked for.
+     */
+    private int kNearestNeighbours(Instance instance, int k, int excludedSlot, int[] neighbours, double[] distances, boolean exact) {
+        int size = 0;
+
+        if(k == 0)
+            return 0;
+
+        double[] pivotDistances = queryPivotDistances(instance);
+        boolean useRows = this.rows != null && !exact;
+        int querySlot = excludedSlot >= 0 ? excludedSlot : FloatRowStore.QUERY;
+
+        if(useRows && excludedSlot < 0)
+            this.rows.setQuery(instance);
+
+        if(this.codes != null) {
+            if(instance != null)
+                this.codes.setQuery(instance);
+            else
+                this.codes.setQuery(excludedSlot);
+        }
+
+        for(int p = 0; p < this.windowSize; p++) {
+            int slot = slotAt(p);
+
+            if(slot == excludedSlot)
+                continue;
+
+            if(size == k && pivots != null && pivots.exceeds(pivotDistances, this.window[slot], distances[k - 1]))
+                continue;
+
+            double bound = size < k ? Double.POSITIVE_INFINITY : distances[k - 1];
+            double distance;
+            if(useRows)
+                distance = this.rows.distance(querySlot, slot);
+            else if(this.codes != null)
+                distance = codedDistance(instance, excludedSlot, slot, bound);
+            else
+                distance = kernel.distance(instance, this.window[slot], bound);
+
+            if(size < k || distance < distances[k - 1]) {
+                insertSorted(neighbours, distances, size, k, slot, distance);
+                if(size < k)
+                    size++;
             }
         }
 
-        return Math.sqrt(distance);
+        return size;
+    }
+
+    /**
+     * Returns the distance from the query, the instance or else the codes of the query slot, to the member of the
+     * slot, in int8 precision. It is exact between kept instances, and infinite when their codes show that it is not
+     * smaller than the bound. Otherwise it is measured between the codes of one and the normalized values of the
+     * other, or between both codes. The codes must hold the query.
+     */
+    private double codedDistance(Instance instance, int querySlot, int slot, double bound) {
+        if(this.window[slot] == null)
+            return this.codes.distance(slot);
+
+        if(instance == null)
+            return this.codes.distance(querySlot, this.window[slot]);
+
+        if(this.codes.exceeds(slot, bound))
+            return Double.POSITIVE_INFINITY;
+
+        return kernel.distance(instance, this.window[slot], bound);
+    }
+
+    /**
+     * Counts the neighbours found in float precision that are not among those found in double precision.
+     */
+    private void auditNeighbours(Instance instance, int k, int numNeighbours) {
+        int numExact = kNearestNeighbours(instance, k, -1, auditNeighbours, auditDistances, true);
+
+        for(int i = 0; i < numNeighbours; i++) {
+            boolean found = false;
+
+            for(int j = 0; j < numExact && !found; j++)
+                found = auditNeighbours[j] == queryNeighbours[i];
+
+            if(!found)
+                this.numMismatchedNeighbours++;
+        }
+
+        this.numAuditedNeighbours += numNeighbours;
     }
 
     @Override
     protected Measurement[] getModelMeasurementsImpl() {
-        return null;
+        return new Measurement[] {
+            new Measurement("distance abandon rate", kernel != null ? kernel.getAbandonRate() : 0),
+            new Measurement("pivot prune rate", pivots != null ? pivots.getPruneRate() : 0),
+            new Measurement("float neighbour mismatch rate", numAuditedNeighbours > 0 ? numMismatchedNeighbours / (double) numAuditedNeighbours : 0),
+            new Measurement("int8 prune rate", codes != null ? codes.getPruneRate() : 0)
+        };
     }
 
     @Override
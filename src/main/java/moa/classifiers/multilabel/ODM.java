@@ -1,12 +1,15 @@
 package moa.classifiers.multilabel;
 
+import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
 import com.yahoo.labs.samoa.instances.*;
 import moa.classifiers.AbstractMultiLabelLearner;
 import moa.classifiers.MultiLabelClassifier;
 import moa.core.Measurement;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -20,6 +23,11 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
     public IntOption kOption = new IntOption("k", 'k', "Size of clusters", 40);
     public IntOption rsOption = new IntOption("ReservoirSize", 'r', "Size of reservoir sampling for each clusters",  100);
     public IntOption nnOption = new IntOption("nn", 'n', "The n nearest neighbors for prediction",  3);
+    public IntOption numProbesOption = new IntOption("numProbes", 'p', "The number of nearest clusters whose reservoirs are searched for prediction", 1, 1, Integer.MAX_VALUE);
+    public IntOption numberOfJobsOption = new IntOption("numberOfJobs", 'j', "Total number of concurrent jobs used for seeding the clusters (-1 = as much as possible, 1 = sequential).", 1, -1, Integer.MAX_VALUE);
+    public IntOption rangeFreezeOption = new IntOption("rangeFreeze", 'z', "The number of training instances after which the ranges of the attributes are frozen (0 = never)", 0, 0, Integer.MAX_VALUE);
+    public FloatOption pruneThresholdOption = new FloatOption("pruneThreshold", 't', "The magnitude below which the feature values of sparse clusters are removed (0 = none)", 0, 0, Double.MAX_VALUE);
+    public IntOption maxKernelValuesOption = new IntOption("maxKernelValues", 'm', "The maximum number of feature values of sparse clusters, the largest in magnitude (0 = unbounded)", 0, 0, Integer.MAX_VALUE);
 
     private Random ran;
     private int numLabels;
@@ -34,15 +42,40 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
     private ArrayList<Instance> kernels;
     private ArrayList<ArrayList<Instance>> reservoirs_Mat;
     private ArrayList<Integer> countsInsertList;
-    private ArrayList<Double> weight_ML;
-    private ArrayList<Double> weight_MS;
+    private History weight_ML;
+    private History weight_MS;
 
     MultiLabelPrediction short_predict;
     MultiLabelPrediction long_predict;
     private int predictIndex;
 
+    private RangeNormalizer normalizer;
     private double[] attributeRangeMin;
-    private double[] attributeRangeMax;
+    private double[] inverseSpan;
+    // Interval of the stored indices of the features, before or after the labels
+    private int firstInput;
+    private int endInput;
+
+    // Labels of the kernels and their squared norms, refreshed whenever a kernel moves
+    private double[][] kernelLabels;
+    private double[] kernelLabelNorms;
+
+    // Normalized rows of the dense samples of the window and the reservoirs, and of the dense kernels
+    private InstanceRows rows;
+
+    // Squared norms of the sparse reservoir samples, valid while their version matches the ranges
+    private double[][] reservoirNorms;
+    private long[][] reservoirNormVersions;
+
+    // The query normalized once for all its distances: all of its features (loaded on demand) or the stored ones
+    private transient Instance queryInstance;
+    private double[] queryValues;
+    private double queryNorm;
+    private boolean queryValuesLoaded;
+    private double[] queryStoredValues;
+    private int[] queryStoredStamps;
+    private int queryStamp;
+    private double queryStoredNorm;
 
 
     public ODM() {
@@ -55,8 +88,13 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
             this.short_predict = new MultiLabelPrediction(this.numLabels);
             this.long_predict = new MultiLabelPrediction(this.numLabels);
 
-            this.attributeRangeMin = new double[context.numInputAttributes()];
-            this.attributeRangeMax = new double[context.numInputAttributes()];
+            this.normalizer = new RangeNormalizer(context.numInputAttributes());
+            this.normalizer.setFreezeAfter(this.rangeFreezeOption.getValue());
+            this.attributeRangeMin = this.normalizer.getMin();
+            this.inverseSpan = this.normalizer.getInverseSpan();
+            this.rows = new InstanceRows(this.normalizer, null);
+            this.firstInput = context.classIndex() == 0 ? context.numOutputAttributes() : 0;
+            this.endInput = context.classIndex() == 0 ? context.numAttributes() : context.classIndex();
 
         } catch(Exception e) {
             System.err.println("Error: no Model Context available.");
@@ -81,8 +119,11 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
         this.kernels = new ArrayList<Instance>();
         this.reservoirs_Mat = new ArrayList<ArrayList<Instance>>();
         this.countsInsertList = new ArrayList<Integer>();
-        this.weight_ML = new ArrayList<Double>();
-        this.weight_MS = new ArrayList<Double>();
+        this.weight_ML = new History(this.windowSize);
+        this.weight_MS = new History(this.windowSize);
+        if (this.rows != null) {
+            this.rows.clear();
+        }
     }
 
 
@@ -91,12 +132,19 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
      */
     public void initializeImpl(ArrayList<Integer> centreIndex) {
 
+        this.reservoirNorms = new double[centreIndex.size()][this.size_RS];
+        this.reservoirNormVersions = new long[centreIndex.size()][this.size_RS];
+        this.kernelLabels = new double[centreIndex.size()][this.numLabels];
+        this.kernelLabelNorms = new double[centreIndex.size()];
+
         int i;
         for(i = 0; i < centreIndex.size(); i++){
             this.kernels.add(this.initialStream.get(centreIndex.get(i)));
+            this.kernelLabelNorms[i] = VectorOperators.kernelLabels(this.kernels.get(i), this.kernelLabels[i]);
 
             ArrayList<Instance> rsList = new ArrayList<Instance>();
             rsList.add(this.initialStream.get(centreIndex.get(i)));
+            addRow(this.initialStream.get(centreIndex.get(i)));
             this.reservoirs_Mat.add(rsList);
             this.countsInsertList.add(1);
         }
@@ -111,7 +159,7 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
     @Override
     public void trainOnInstanceImpl(MultiLabelInstance instance) {
 
-        updateRanges(instance);
+        this.normalizer.update(instance);
 
         if (this.initialStream != null){
             if(this.initialStream.size() < this.num_initial ) {
@@ -128,9 +176,10 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
 
 
         if(this.window.size() == this.windowSize){
-            this.window.remove(0);
+            this.rows.remove(this.window.remove(0));
         }
         this.window.add(instance);
+        addRow(instance);
 
     }
 
@@ -138,73 +187,52 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
 
     private ArrayList<Integer> chooseRandomCentres(List<Instance> initialStream) {
 
-        ArrayList<Integer> centres = new ArrayList<Integer>();
-        int i = 0;
-        centres.add(i);
-        Instance newcentre = initialStream.get(i);
-
-        int streamL = initialStream.size();
-        double[] Streamdist = new double[streamL];
-
-        for(i = 0; i < streamL; ++i){
-            Streamdist[i] = VectorOperators.getCosLab(initialStream.get(i), newcentre);
-            //Streamdist[i] = VectorOperators.getDistanceLab(initialStream.get(i), newcentre);
+        // Binary labels are packed once, so that every distance of the seeding is a few popcounts
+        long[][] labels = new long[initialStream.size()][];
+        boolean packed = true;
+        for (int i = 0; i < labels.length && packed; i++) {
+            labels[i] = VectorOperators.packLabels(initialStream.get(i));
+            packed = labels[i] != null;
         }
 
-        for(i = 1; i < this.size_kernels; ++i) {
-            double cost = 0.0D;
+        CentreSeeding.SampleDistance metric = packed
+                ? (sample, centre) -> VectorOperators.getCosLab(labels[sample], labels[centre])
+                : (sample, centre) -> VectorOperators.getCosLab(initialStream.get(sample), initialStream.get(centre));
+        //CentreSeeding.SampleDistance metric = (sample, centre) -> VectorOperators.getDistanceLab(labels[sample], labels[centre]);
 
-            int j;
-            for(j = 0; j < streamL; ++j) {
-                cost += Streamdist[j];
-            }
-
-            double sum = 0.0D;
-            int pos;
-            if(cost > 0.0D) {
-                do {
-                    double random = this.ran.nextDouble();
-                    sum = 0.0D;
-                    pos = -1;
-
-                    for (j = 0; j < streamL; ++j) {
-                        sum += Streamdist[j];
-                        if (random <= sum / cost) {
-                            pos = j;
-                            break;
-                        }
-                    }
-                } while (pos < 0);
-            }else{
-                do {
-                    pos = this.ran.nextInt(streamL);
+        return CentreSeeding.chooseCentres(initialStream.size(), this.size_kernels, metric,
+                this.ran, this.numberOfJobsOption.getValue());
+    }
 
-                }while (centres.contains(pos));
-            }
-            centres.add(pos);
-            newcentre = initialStream.get(pos);
-
-            for(j = 0; j < streamL; ++j) {
-                double newdist = VectorOperators.getCosLab(initialStream.get(j), newcentre);
-                //double newdist = VectorOperators.getDistanceLab(initialStream.get(j), newcentre);
-                if (Streamdist[j] > newdist) {
-                    Streamdist[j] = newdist;
-                }
+    /**
+     * Returns the indices of the n nearest clusters among the first length ones (sorted), or of all the clusters
+     * with a distance below Double.MAX_VALUE when fewer, so no reservoir is probed twice. The first one is probed
+     * when none has a distance, as nArgMin does.
+     */
+    private int[] nearestProbes(int n, double[] distances, int length) {
+
+        int[] indices = new int[n];
+        double[] smallest = new double[n];
+        int size = 0;
+
+        for (int j = 0; j < length; j++) {
+            // NaN distances of zero-norm kernels or queries are never probed
+            if (!(distances[j] < Double.MAX_VALUE) || (size == n && distances[j] >= smallest[n - 1]))
+                continue;
+
+            int position = size < n ? size++ : n - 1;
+            while (position > 0 && smallest[position - 1] > distances[j]) {
+                smallest[position] = smallest[position - 1];
+                indices[position] = indices[position - 1];
+                position--;
             }
+            smallest[position] = distances[j];
+            indices[position] = j;
         }
-        return centres;
-    }
 
-    private void updateRanges(MultiLabelInstance instance) {
-        for(int i = 0; i < instance.numInputAttributes(); i++) {
-            if(instance.valueInputAttribute(i) < this.attributeRangeMin[i])
-                this.attributeRangeMin[i] = instance.valueInputAttribute(i);
-            if(instance.valueInputAttribute(i) > this.attributeRangeMax[i])
-                this.attributeRangeMax[i] = instance.valueInputAttribute(i);
-        }
+        return Arrays.copyOf(indices, Math.max(size, 1));
     }
 
-
     /**
      * Returns the n smallest indices of the smallest values (sorted).
      */
@@ -234,25 +262,172 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
     }
 
     /**
-     * Computes the distance between one sample and a collection of samples in an 1D-array.
+     * Computes the label distance between one sample and the kernels in an 1D-array. Binary labels are compared to
+     * the copied labels of the kernels, visiting only the set ones.
+     */
+
+    private double[] get1ToNDistances(Instance multiLabelInstance) {
+
+        double[] distances = new double[this.kernels.size()];
+        long[] labels = VectorOperators.packLabels(multiLabelInstance);
+
+        for (int i = 0; i < this.kernels.size(); ++i) {
+            if (labels != null) {
+                distances[i] = VectorOperators.getCosLab(this.kernelLabels[i], this.kernelLabelNorms[i], labels);
+                //distances[i] = VectorOperators.getDistanceLab(this.kernelLabels[i], this.kernelLabelNorms[i], labels);
+            } else {
+                distances[i] = VectorOperators.getCosLab(this.kernels.get(i),multiLabelInstance);
+                //distances[i] = VectorOperators.getDistanceLab(this.kernels.get(i),multiLabelInstance);
+            }
+        }
+
+        return distances;
+    }
+
+    /**
+     * Normalizes the stored features of the query once for all the feature distances of a prediction.
      */
+    private void loadQuery(Instance instance) {
 
-    private double[] get1ToNDistances(List<Instance> kernelsList, Instance multiLabelInstance, char model ) {
+        int numInputs = instance.numInputAttributes();
+        if (this.queryStoredValues == null || this.queryStoredValues.length != numInputs) {
+            this.queryValues = new double[numInputs];
+            this.queryStoredValues = new double[numInputs];
+            this.queryStoredStamps = new int[numInputs];
+        }
+
+        this.queryValuesLoaded = false;
+        this.queryStamp++;
+        this.queryStoredNorm = 0.0D;
+
+        for (int p = 0; p < instance.numValues(); p++) {
+            int idx = featureIndex(instance.index(p));
+            if (idx >= 0) {
+                double val = (instance.valueSparse(p) - this.attributeRangeMin[idx]) * this.inverseSpan[idx];
+                this.queryStoredValues[idx] = val;
+                this.queryStoredStamps[idx] = this.queryStamp;
+                this.queryStoredNorm += val * val;
+            }
+        }
+
+        this.queryInstance = instance;
+    }
+
+    /**
+     * Normalizes every feature of the query, needed by the dense samples only.
+     */
+    private void loadQueryValues() {
+
+        this.queryNorm = 0.0D;
+
+        for (int i = 0; i < this.queryValues.length; i++) {
+            double val = (this.queryInstance.valueInputAttribute(i) - this.attributeRangeMin[i]) * this.inverseSpan[i];
+            this.queryValues[i] = val;
+            this.queryNorm += val * val;
+        }
 
-        double[] distances = new double[kernelsList.size()];
+        this.queryValuesLoaded = true;
+    }
+
+    /**
+     * Returns the feature index of a stored attribute, or -1 for a label.
+     */
+    private int featureIndex(int index) {
 
-        if(model == 'U'){
-            for (int i = 0; i < kernelsList.size(); ++i) {
-                distances[i] = VectorOperators.getCosLab(kernelsList.get(i),multiLabelInstance);
-                //distances[i] = VectorOperators.getDistanceLab(kernelsList.get(i),multiLabelInstance);
+        return index >= this.firstInput && index < this.endInput ? index - this.firstInput : -1;
+    }
+
+    /**
+     * Keeps the normalized row of a dense sample entering the window or a reservoir.
+     */
+    private void addRow(Instance instance) {
+
+        if (instance.numValues() == instance.numAttributes()) {
+            this.rows.add(instance);
+        }
+    }
+
+    /**
+     * Squared norm of the normalized features of a sample, as accumulated by VectorOperators.getCosAtt.
+     */
+    private double attributeNorm(Instance instance) {
+
+        double norm = 0.0D;
+
+        if (instance.numValues() == instance.numAttributes()) {
+            norm = this.rows.row(instance, 0).squaredNorm;
+        } else {
+            for (int p = 0; p < instance.numValues(); p++) {
+                int idx = featureIndex(instance.index(p));
+                if (idx >= 0) {
+                    double val = (instance.valueSparse(p) - this.attributeRangeMin[idx]) * this.inverseSpan[idx];
+                    norm += val * val;
+                }
             }
         }
-        else{
-            for (int i = 0; i < kernelsList.size(); ++i) {
-                distances[i] = VectorOperators.getCosAtt(kernelsList.get(i),multiLabelInstance, this.attributeRangeMax, this.attributeRangeMin);
-                //distances[i] = VectorOperators.getDistanceAtt(kernelsList.get(i),multiLabelInstance, attributeRangeMax, attributeRangeMin);
+
+        return norm;
+    }
+
+    /**
+     * Squared norm of a reservoir sample, kept with its row when dense, or cached until the ranges change or the
+     * sample is replaced.
+     */
+    private double reservoirNorm(int kernelsIndex, int position) {
+
+        Instance sample = this.reservoirs_Mat.get(kernelsIndex).get(position);
+        if (sample.numValues() == sample.numAttributes()) {
+            return attributeNorm(sample);
+        }
+
+        if (this.reservoirNormVersions[kernelsIndex][position] != this.normalizer.getVersion()) {
+            this.reservoirNorms[kernelsIndex][position] = attributeNorm(sample);
+            this.reservoirNormVersions[kernelsIndex][position] = this.normalizer.getVersion();
+        }
+        return this.reservoirNorms[kernelsIndex][position];
+    }
+
+    /**
+     * Cosine distance between a sample of the given squared norm and the loaded query, equal to
+     * VectorOperators.getCosAtt(sample, query) but in time linear in the values stored by the sample.
+     */
+    private double getQueryDistance(Instance instance, double norm) {
+
+        double distance = 0.0D;
+        double queryNorm;
+
+        if (instance.numValues() == instance.numAttributes()) {
+            if (!this.queryValuesLoaded) {
+                loadQueryValues();
             }
 
+            distance = RowOperators.dotProduct(this.rows.row(instance, 0).values, 0, this.queryValues, 0, this.queryValues.length);
+            queryNorm = this.queryNorm;
+        } else {
+            for (int p = 0; p < instance.numValues(); p++) {
+                int idx = featureIndex(instance.index(p));
+                if (idx >= 0 && this.queryStoredStamps[idx] == this.queryStamp) {
+                    double val1 = (instance.valueSparse(p) - this.attributeRangeMin[idx]) * this.inverseSpan[idx];
+                    distance += val1 * this.queryStoredValues[idx];
+                }
+            }
+            queryNorm = this.queryStoredNorm;
+        }
+
+        distance = distance / (Math.sqrt(norm) * Math.sqrt(queryNorm));
+
+        return 1 - distance;
+    }
+
+    /**
+     * Computes the distances between the loaded query and a collection of samples.
+     */
+    private double[] getQueryDistances(List<Instance> samples) {
+
+        double[] distances = new double[samples.size()];
+
+        for (int i = 0; i < samples.size(); ++i) {
+            distances[i] = getQueryDistance(samples.get(i), attributeNorm(samples.get(i)));
         }
 
         return distances;
@@ -269,25 +444,38 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
         int numMemory = this.countsInsertList.get(kernelsIndex);
         Instance newkernel = VectorOperators.calculateCenter(this.kernels.get(kernelsIndex), newInstance, numMemory, learning);
 
+        // Sparse kernels grow with every distinct feature merged in, unless they are compacted
+        if (newkernel instanceof SparseCentroid && (this.pruneThresholdOption.getValue() > 0 || this.maxKernelValuesOption.getValue() > 0)) {
+            int maxValues = this.maxKernelValuesOption.getValue() > 0 ? this.maxKernelValuesOption.getValue() : Integer.MAX_VALUE;
+            newkernel = VectorOperators.kernelMax(newkernel, this.pruneThresholdOption.getValue(), maxValues);
+        }
+
+        // A dense kernel is updated in place, and so is its seed while it stays in the reservoir
+        this.rows.refresh(newkernel);
         this.kernels.set(kernelsIndex, newkernel);
+        this.kernelLabelNorms[kernelsIndex] = VectorOperators.kernelLabels(newkernel, this.kernelLabels[kernelsIndex]);
 
     }
 
 
     private void updateCluster(Instance multiLabelInstance) {
 
-        double[] updateDistances = get1ToNDistances(this.kernels, multiLabelInstance, 'U');
+        double[] updateDistances = get1ToNDistances(multiLabelInstance);
         int updateIndex = nArgMin(1, updateDistances)[0];
 
         int num_insert = this.countsInsertList.get(updateIndex);
 
         if (num_insert < this.size_RS) {
             this.reservoirs_Mat.get(updateIndex).add(multiLabelInstance);
+            this.reservoirNormVersions[updateIndex][this.reservoirs_Mat.get(updateIndex).size() - 1] = 0;
+            addRow(multiLabelInstance);
         } else{
 
             int replace = this.ran.nextInt(num_insert);
             if (replace < this.size_RS){
-                this.reservoirs_Mat.get(updateIndex).set(replace, multiLabelInstance);
+                this.rows.remove(this.reservoirs_Mat.get(updateIndex).set(replace, multiLabelInstance));
+                this.reservoirNormVersions[updateIndex][replace] = 0;
+                addRow(multiLabelInstance);
             }
         }
 
@@ -311,10 +499,8 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
 
         if (this.kernels.size() != 0 && this.weight_ML.size() > 0) {
 
-            for (int i = 0; i < this.weight_ML.size(); i++) {
-                weightST += this.weight_MS.get(i);
-                weightLT += this.weight_ML.get(i);
-            }
+            weightST += this.weight_MS.sum();
+            weightLT += this.weight_ML.sum();
 
             double sumWeight = weightST + weightLT;
             if(sumWeight != 0){
@@ -325,10 +511,29 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
                 weightLT = 1.0D;
             }
 
-            double[] distances = get1ToNDistances(this.kernels, multiLabelInstance, 'P');
-            this.predictIndex = nArgMin(1, distances)[0];
-            this.long_predict = getPrediction(multiLabelInstance, this.reservoirs_Mat.get(this.predictIndex));
-            this.short_predict = getPrediction(multiLabelInstance, this.window);
+            loadQuery(multiLabelInstance);
+            double[] distances = getQueryDistances(this.kernels);
+            int[] probes = nearestProbes(Math.min(this.numProbesOption.getValue(), distances.length), distances, distances.length);
+            this.predictIndex = probes[0];
+
+            // The reservoirs of the nearest clusters are searched together
+            int numCandidates = 0;
+            for (int probe : probes) {
+                numCandidates += this.reservoirs_Mat.get(probe).size();
+            }
+
+            List<Instance> candidates = new ArrayList<Instance>(numCandidates);
+            double[] candidateDistances = new double[numCandidates];
+            for (int probe : probes) {
+                ArrayList<Instance> reservoir = this.reservoirs_Mat.get(probe);
+                for (int i = 0; i < reservoir.size(); i++) {
+                    candidateDistances[candidates.size()] = getQueryDistance(reservoir.get(i), reservoirNorm(probe, i));
+                    candidates.add(reservoir.get(i));
+                }
+            }
+
+            this.long_predict = getPrediction(candidates, candidateDistances);
+            this.short_predict = getPrediction(this.window, getQueryDistances(this.window));
 
             for(int j = 0; j < this.numLabels; j++) {
                 double count = 0;
@@ -337,17 +542,17 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
             }
 
         }else {
-            prediction = getPrediction(multiLabelInstance, this.window);
+            loadQuery(multiLabelInstance);
+            prediction = getPrediction(this.window, getQueryDistances(this.window));
             this.short_predict= prediction;
         }
         return prediction;
 
     }
 
-    protected MultiLabelPrediction getPrediction(MultiLabelInstance multiLabelInstance, List<Instance> preInstances){
+    protected MultiLabelPrediction getPrediction(List<Instance> preInstances, double[] preDistance){
 
         MultiLabelPrediction prediction = new MultiLabelPrediction(this.numLabels);
-        double[] preDistance = get1ToNDistances(preInstances, multiLabelInstance, 'P');
 
         int[] nnIndices = nArgMin(Math.min(preDistance.length, this.size_nn), preDistance);
         for(int j = 0; j < this.numLabels; j++) {
@@ -366,15 +571,9 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
     protected void updateHistories(MultiLabelInstance multiLabelInstance) {
 
         double shortAcc = AccPred(this.short_predict, multiLabelInstance);
-        if (this.weight_MS.size() == this.windowSize) {
-            this.weight_MS.remove(0);
-        }
         this.weight_MS.add(shortAcc);
 
         double longAcc = AccPred(this.long_predict, multiLabelInstance);
-        if (this.weight_ML.size() == this.windowSize) {
-            this.weight_ML.remove(0);
-        }
         this.weight_ML.add(longAcc);
     }
 
@@ -401,7 +600,19 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
 
     @Override
     protected Measurement[] getModelMeasurementsImpl() {
-        return new Measurement[0];
+
+        // Stored values of the kernels, which pruning keeps bounded on sparse streams
+        double meanValues = 0.0D;
+        if (this.kernels != null && !this.kernels.isEmpty()) {
+            for (Instance kernel : this.kernels) {
+                meanValues += kernel.numValues();
+            }
+            meanValues /= this.kernels.size();
+        }
+
+        return new Measurement[]{
+                new Measurement("mean kernel values", meanValues)
+        };
     }
 
     @Override
@@ -412,4 +623,68 @@ public class ODM extends AbstractMultiLabelLearner implements MultiLabelClassifi
     public boolean isRandomizable() {
         return true;
     }
+
+    /**
+     * The last values of a history in a ring buffer, with their running sum. An undefined accuracy (NaN) makes
+     * the sum undefined while it is in the window, and the sum is recomputed once per window against rounding drift.
+     */
+    private static class History implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] values;
+        private int size;
+        private int head;
+        private double sum;
+        private int numUndefined;
+        private int numAdded;
+
+        History(int capacity) {
+            this.values = new double[capacity];
+        }
+
+        void add(double value) {
+            if (this.size == this.values.length) {
+                exclude(this.values[this.head]);
+            } else {
+                this.size++;
+            }
+
+            this.values[this.head] = value;
+            this.head = (this.head + 1) % this.values.length;
+            include(value);
+
+            if (++this.numAdded % this.values.length == 0) {
+                this.sum = 0.0D;
+                this.numUndefined = 0;
+                for (int i = 0; i < this.size; i++) {
+                    include(this.values[i]);
+                }
+            }
+        }
+
+        private void include(double value) {
+            if (Double.isNaN(value)) {
+                this.numUndefined++;
+            } else {
+                this.sum += value;
+            }
+        }
+
+        private void exclude(double value) {
+            if (Double.isNaN(value)) {
+                this.numUndefined--;
+            } else {
+                this.sum -= value;
+            }
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        double sum() {
+            return this.numUndefined > 0 ? Double.NaN : this.sum;
+        }
+    }
 }
\ No newline at end of file
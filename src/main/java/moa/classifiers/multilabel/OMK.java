@@ -18,6 +18,8 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
     public IntOption kOption = new IntOption("k", 'k', "Size of clusters", 30);
     public IntOption rsOption = new IntOption("ReservoirSize", 'r', "Size of reservoir sampling for each clusters",  100);
     public IntOption nnOption = new IntOption("nn", 'n', "The n nearest neighbors for prediction",  3);
+    public IntOption numProbesOption = new IntOption("numProbes", 'p', "The number of nearest clusters whose reservoirs are searched for prediction", 1, 1, Integer.MAX_VALUE);
+    public IntOption numberOfJobsOption = new IntOption("numberOfJobs", 'j', "Total number of concurrent jobs used for seeding the clusters (-1 = as much as possible, 1 = sequential).", 1, -1, Integer.MAX_VALUE);
 
 
     private int windowSize;
@@ -27,9 +29,35 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
     public int size_nn;
     private List<Instance> window;
     private List<Instance> initialStream;
-    private ArrayList<Instance> kernels;
     private ArrayList<ArrayList<Instance>> reservoirsamp_Mat;
-    private ArrayList<Integer> countsInsertList;
+    private int[] countsInsert;
+
+    // Scales smaller than this are multiplied into the rows, before their values overflow
+    private static final double MIN_SCALE = 1e-30;
+
+    // Kernels as the rows [labels | features] of a contiguous matrix, updated in place. Each row holds its
+    // centroid divided by a scale, so that a sparse update only touches the non-zero values of the instance
+    private double[] centroids;
+    private double[] scales;
+    private double[] squaredNorms;
+    private int numKernels;
+    private int numLabels;
+    private int numFeatures;
+    private int rowLength;
+    // Stored index of the first label, 0 when the labels come before the features
+    private int firstLabel;
+
+    // Buffers reused by every query. Sparse queries keep the row positions of their values, -1 for dense ones
+    private double[] queryRow;
+    private int[] queryPositions;
+    private int numQueryPositions;
+    private double querySquaredNorm;
+    private double[] kernelDistances;
+    private double[] candidateDistances;
+    private ArrayList<Instance> candidates;
+
+    // Features of the dense samples of the window and the reservoirs
+    private InstanceRows rows;
 
     private Random ran = new Random(2);
 
@@ -48,10 +76,12 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
 
         window = new ArrayList<Instance>();
         initialStream = new ArrayList<Instance>();
-        kernels = new ArrayList<Instance>();
         reservoirsamp_Mat = new ArrayList<ArrayList<Instance>>();
-        countsInsertList = new ArrayList<Integer>();
+        candidates = new ArrayList<Instance>();
 
+        centroids = null;
+        numKernels = 0;
+        queryRow = null;
 
     }
 
@@ -61,16 +91,26 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
      */
     public void initializeImpl(ArrayList<Integer> centreIndex) {
 
+        centroids = new double[centreIndex.size() * rowLength];
+        scales = new double[centreIndex.size()];
+        squaredNorms = new double[centreIndex.size()];
+        kernelDistances = new double[centreIndex.size()];
+        countsInsert = new int[centreIndex.size()];
+
         int i;
         for(i = 0; i < centreIndex.size(); i++){
 
-            kernels.add(initialStream.get(centreIndex.get(i)));
+            // The centroid starts as a copy of its seed, which stays untouched in the reservoir
+            loadRow(initialStream.get(centreIndex.get(i)), centroids, numKernels * rowLength);
+            scales[numKernels] = 1.0D;
+            foldScale(numKernels);
 
             ArrayList<Instance> rsList = new ArrayList<Instance>();
             rsList.add(initialStream.get(centreIndex.get(i)));
+            addRow(initialStream.get(centreIndex.get(i)));
 
             reservoirsamp_Mat.add(rsList);
-            countsInsertList.add(1);
+            countsInsert[numKernels++] = 1;
         }
 
         for(i = 0; i < num_initial; i++ ){
@@ -84,9 +124,10 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
     @Override
     public void trainOnInstanceImpl(MultiLabelInstance multiLabelInstance) {
 
-        Instance instance = sparseTodense(multiLabelInstance);
+        initBuffers(multiLabelInstance);
+
         if(initialStream.size() < num_initial ) {
-            initialStream.add(instance);
+            initialStream.add(multiLabelInstance);
             // Initialization
         }else if (initialStream.size() == num_initial){
             ArrayList<Integer> centreIndex = chooseRandomCentres(initialStream);
@@ -95,14 +136,15 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
         }
 
         if (num_initial == -1){
-            updateCluster(instance);
+            updateCluster(multiLabelInstance);
         }
 
         if(window.size() == windowSize){
             // Update Windows
-            window.remove(0);
+            rows.remove(window.remove(0));
         }
-        window.add(instance);
+        window.add(multiLabelInstance);
+        addRow(multiLabelInstance);
 
     }
 
@@ -119,15 +161,47 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
         return Math.sqrt(distance);
     }
 
-    private double[] instanceAttributes(Instance inst){
+    /**
+     * Sizes the rows and the query buffers from the first instance seen.
+     */
+    private void initBuffers(Instance inst) {
+
+        if (queryRow != null)
+            return;
+
+        numLabels = inst.numberOutputTargets();
+        numFeatures = inst.numInputAttributes();
+        rowLength = numLabels + numFeatures;
+        firstLabel = inst.classIndex();
+        queryRow = new double[rowLength];
+        rows = new InstanceRows(numFeatures);
+        queryPositions = new int[16];
+        numQueryPositions = -1;
+        candidateDistances = new double[16];
+    }
 
-        double[] inst_attributes = new double[inst.numInputAttributes()];
+    /**
+     * Copies the labels and the features of an instance into a row starting at the offset.
+     */
+    private void loadRow(Instance inst, double[] rows, int offset) {
 
-        for(int i = 0; i < inst.numInputAttributes(); i++) {
-            inst_attributes[i] = inst.valueInputAttribute(i);
+        for (int j = 0; j < numLabels; j++) {
+            rows[offset + j] = inst.classValue(j);
         }
 
-        return inst_attributes;
+        for (int i = 0; i < numFeatures; i++) {
+            rows[offset + numLabels + i] = inst.valueInputAttribute(i);
+        }
+    }
+
+    /**
+     * Keeps the features of a dense sample entering the window or a reservoir.
+     */
+    private void addRow(Instance inst) {
+
+        if (inst.numValues() == inst.numAttributes()) {
+            rows.add(inst);
+        }
     }
 
     private double[] instanceLabels(Instance inst){
@@ -141,94 +215,122 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
         return inst_labels;
     }
 
-    protected Instance sparseTodense(Instance inst) {
+    /**
+     * Returns the position in a row of a sparse value, given its attribute index in the instance.
+     */
+    private int rowPosition(int attributeIndex) {
 
-        if(inst.numValues() == inst.numAttributes()){
-            return inst;
-        } else {
-            InstancesHeader header = new InstancesHeader(inst.dataset());
-            double[] attVals = new double[inst.numAttributes()];
+        return attributeIndex >= firstLabel ? attributeIndex - firstLabel : numLabels + attributeIndex;
+    }
+
+    /**
+     * Loads an instance into the query row. A sparse instance only writes its non-zero values, after clearing
+     * those of the previous query.
+     */
+    private void loadQuery(Instance inst) {
+
+        querySquaredNorm = 0.0D;
+
+        if (inst.numValues() == inst.numAttributes()) {
+            loadRow(inst, queryRow, 0);
+            numQueryPositions = -1;
 
-            for (int attributeIndex = 0; attributeIndex < inst.numAttributes(); ++attributeIndex) {
-                attVals[attributeIndex] = inst.value(attributeIndex);
+            for (int i = numLabels; i < rowLength; i++) {
+                querySquaredNorm += queryRow[i] * queryRow[i];
             }
-            Instance instance = new DenseInstance(1.0D, attVals);
-            instance.setDataset(header);
+            return;
+        }
 
-            return instance;
+        if (numQueryPositions < 0) {
+            Arrays.fill(queryRow, 0.0D);
+        } else {
+            for (int p = 0; p < numQueryPositions; p++) {
+                queryRow[queryPositions[p]] = 0.0D;
+            }
         }
-    }
 
-    private ArrayList<Integer> chooseRandomCentres(List<Instance> initialStream) {
+        if (queryPositions.length < inst.numValues()) {
+            queryPositions = new int[Math.max(inst.numValues(), 2 * queryPositions.length)];
+        }
 
-        int k = size_kernels;
+        numQueryPositions = 0;
+        for (int p = 0; p < inst.numValues(); p++) {
+            int position = rowPosition(inst.index(p));
+            queryRow[position] = inst.valueSparse(p);
+            queryPositions[numQueryPositions++] = position;
 
-        ArrayList<Integer> centres = new ArrayList<Integer>();
-        int i = 0;
-        centres.add(i);
-        double[] newcentre = instanceLabels(initialStream.get(i));
+            if (position >= numLabels) {
+                querySquaredNorm += queryRow[position] * queryRow[position];
+            }
+        }
+    }
 
-        int streamL = initialStream.size();
-        double[] Streamdist = new double[streamL];
+    private ArrayList<Integer> chooseRandomCentres(List<Instance> initialStream) {
 
-        for(i = 0; i < streamL; ++i) {
-            Streamdist[i] = getdistance(instanceLabels(initialStream.get(i)), newcentre);
+        // Binary labels are packed, so that every distance of the seeding is a few popcounts
+        long[][] packedLabels = new long[initialStream.size()][];
+        boolean packed = true;
+        for (int i = 0; i < packedLabels.length && packed; i++) {
+            packedLabels[i] = VectorOperators.packLabels(initialStream.get(i));
+            packed = packedLabels[i] != null;
         }
 
-        for(i = 1; i < k; ++i) {
-            double cost = 0.0D;
+        if (packed) {
+            return CentreSeeding.chooseCentres(packedLabels.length, size_kernels,
+                    (sample, centre) -> Math.sqrt(VectorOperators.getDistanceLab(packedLabels[sample], packedLabels[centre])),
+                    ran, numberOfJobsOption.getValue());
+        }
 
-            int j;
-            for(j = 0; j < streamL; ++j) {
-                cost += Streamdist[j];
-            }
+        double[][] labels = new double[initialStream.size()][];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = instanceLabels(initialStream.get(i));
+        }
 
-            double sum = 0.0D;
-            int pos;
-            if(cost > 0.0D) {
-                do {
-                    double random = ran.nextDouble();
-                    sum = 0.0D;
-                    pos = -1;
-
-                    for (j = 0; j < streamL; ++j) {
-                        sum += Streamdist[j];
-                        if (random <= sum / cost) {
-                            pos = j;
-                            break;
-                        }
-                    }
-                } while (pos < 0);
-            }else{
-                do {
-                    pos = ran.nextInt(streamL);
+        return CentreSeeding.chooseCentres(labels.length, size_kernels,
+                (sample, centre) -> getdistance(labels[sample], labels[centre]),
+                ran, numberOfJobsOption.getValue());
+    }
 
-                }while (centres.contains(pos));
-            }
-            centres.add(pos);
-            newcentre = instanceLabels(initialStream.get(pos));
 
-            for(j = 0; j < streamL; ++j) {
-                double newdist = getdistance(instanceLabels(initialStream.get(j)), newcentre);
-                if (Streamdist[j] > newdist) {
-                    Streamdist[j] = newdist;
-                }
+    /**
+     * Returns the indices of the n nearest kernels among the first length ones (sorted), or of all the kernels
+     * with a distance below Double.MAX_VALUE when fewer, so no reservoir is probed twice. The first one is probed
+     * when none has a distance, as nArgMin does.
+     */
+    private int[] nearestProbes(int n, double[] distances, int length) {
+
+        int[] indices = new int[n];
+        double[] smallest = new double[n];
+        int size = 0;
+
+        for (int j = 0; j < length; j++) {
+            // NaN distances of zero-norm kernels or queries are never probed
+            if (!(distances[j] < Double.MAX_VALUE) || (size == n && distances[j] >= smallest[n - 1]))
+                continue;
+
+            int position = size < n ? size++ : n - 1;
+            while (position > 0 && smallest[position - 1] > distances[j]) {
+                smallest[position] = smallest[position - 1];
+                indices[position] = indices[position - 1];
+                position--;
             }
+            smallest[position] = distances[j];
+            indices[position] = j;
         }
-        return centres;
-    }
 
+        return Arrays.copyOf(indices, Math.max(size, 1));
+    }
 
     /**
-     * Returns the n smallest indices of the smallest values (sorted).
+     * Returns the n smallest indices of the smallest values among the first length ones (sorted).
      */
-    private int[] nArgMin(int n, double[] distances) {
+    private int[] nArgMin(int n, double[] distances, int length) {
 
         int indices[] = new int[n];
 
         for (int i = 0; i < n; i++){
             double minValue = Double.MAX_VALUE;
-            for (int j = 0; j < distances.length; j++){
+            for (int j = 0; j < length; j++){
 
                 if (distances[j] < minValue){
                     boolean alreadyUsed = false;
@@ -248,125 +350,215 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
     }
 
     /**
-     * Computes the Euclidean distance between one sample and a collection of samples in an 1D-array.
+     * Returns the index of the smallest of the first length values, the first one on ties.
      */
-    private double[] get1ToNDistances(List<Instance> kernelsList, Instance multiLabelInstance, char model ) {
+    private static int argMin(double[] distances, int length) {
 
-        List<double[]> pointAList = new ArrayList<double[]>();
-        double[] pointA;
-        double[] pointB;
-        double[] distances = new double[kernelsList.size()];
+        int index = 0;
+        double minValue = Double.MAX_VALUE;
 
-        if(model == 'U'){
-            for (int i = 0; i < kernelsList.size(); ++i) {
-                pointA = instanceLabels(kernelsList.get(i));
-                pointAList.add(pointA);
+        for (int j = 0; j < length; j++) {
+            if (distances[j] < minValue) {
+                index = j;
+                minValue = distances[j];
             }
-            pointB = instanceLabels(multiLabelInstance);
         }
-        else{
-            for (int i = 0; i < kernelsList.size(); ++i) {
-                pointA = instanceAttributes(kernelsList.get(i));
-                pointAList.add(pointA);
+        return index;
+    }
+
+    /**
+     * Computes the Euclidean distance between the query row and every kernel, over the labels ('U') or the features.
+     * The features of a sparse query are compared through the norms of the kernels, in time linear in its non-zeros.
+     */
+    private void getKernelDistances(char model) {
+
+        boolean labels = model == 'U';
+
+        for (int c = 0; c < numKernels; c++) {
+            int offset = c * rowLength;
+            double scale = scales[c];
+            double distance = 0.0D;
+
+            if (labels || numQueryPositions < 0) {
+                int from = labels ? 0 : numLabels;
+                distance = RowOperators.squaredDistance(centroids, offset + from, scale, queryRow, from, labels ? numLabels : numFeatures);
+            } else {
+                double dot = 0.0D;
+
+                for (int p = 0; p < numQueryPositions; p++) {
+                    int position = queryPositions[p];
+                    if (position >= numLabels) {
+                        dot += centroids[offset + position] * queryRow[position];
+                    }
+                }
+
+                distance = Math.max(0.0D, scale * scale * squaredNorms[c] - 2.0D * scale * dot + querySquaredNorm);
             }
-            pointB = instanceAttributes(multiLabelInstance);
 
+            kernelDistances[c] = Math.sqrt(distance);
         }
+    }
 
-        for (int i = 0; i < pointAList.size(); i++) {
-            pointA = pointAList.get(i);
-            distances[i] = getdistance(pointA, pointB);
+    /**
+     * Computes the Euclidean distance between the features of an instance and those of the query row,
+     * in time linear in the non-zeros of the instance when either of them is sparse.
+     */
+    private double getFeatureDistance(Instance inst) {
+
+        double distance = 0.0D;
+
+        if (numQueryPositions < 0 && inst.numValues() == inst.numAttributes()) {
+            distance = RowOperators.squaredDistance(rows.row(inst, 0).values, 0, queryRow, numLabels, numFeatures);
+        } else {
+            distance = querySquaredNorm;
+
+            for (int p = 0; p < inst.numValues(); p++) {
+                int position = rowPosition(inst.index(p));
+                if (position >= numLabels) {
+                    double q = queryRow[position];
+                    double d = inst.valueSparse(p) - q;
+                    distance += d * d - q * q;
+                }
+            }
+
+            distance = Math.max(0.0D, distance);
         }
-        return distances;
+
+        return Math.sqrt(distance);
     }
 
 
     /**
      *
      * @param kernelsIndex
-     * Traverse all the example in the reservoir sampling and get the average for features and labels
+     * Moves the kernel to the average of the examples inserted in its reservoir sampling
      */
-    private void calculateCenter(int kernelsIndex, Instance multiLabelInstance) {
+    private void calculateCenter(int kernelsIndex) {
 
-        Instance kernel = kernels.get(kernelsIndex);
-
-        int numAtt = kernel.numAttributes();
         int numMemory = reservoirsamp_Mat.get(kernelsIndex).size();
-        double[] res = new double[numAtt];
+        int offset = kernelsIndex * rowLength;
 
         if (numMemory == size_RS){
             numMemory --;
         }
 
-        for (int i = 0; i < numAtt; ++i) {
-            res[i] = kernels.get(kernelsIndex).value(i) * (double) numMemory;
-            res[i] += multiLabelInstance.value(i);
-            res[i] /= (double) (numMemory + 1);
-            kernel.setValue(i, res[i]);
+        if (numQueryPositions < 0 || numMemory == 0) {
+            double scale = scales[kernelsIndex];
+
+            for (int i = 0; i < rowLength; ++i) {
+                centroids[offset + i] = (centroids[offset + i] * scale * (double) numMemory + queryRow[i]) / (double) (numMemory + 1);
+            }
+
+            scales[kernelsIndex] = 1.0D;
+            foldScale(kernelsIndex);
+        } else {
+            // Shrinking the scale moves every value towards zero, only the non-zeros of the query are added
+            double scale = scales[kernelsIndex] * (double) numMemory / (double) (numMemory + 1);
+            double step = 1.0D / ((double) (numMemory + 1) * scale);
+
+            for (int p = 0; p < numQueryPositions; p++) {
+                int position = queryPositions[p];
+                double old = centroids[offset + position];
+                centroids[offset + position] = old + queryRow[position] * step;
+
+                if (position >= numLabels) {
+                    squaredNorms[kernelsIndex] += centroids[offset + position] * centroids[offset + position] - old * old;
+                }
+            }
+
+            scales[kernelsIndex] = scale;
+            if (scale < MIN_SCALE) {
+                foldScale(kernelsIndex);
+            }
         }
+    }
+
+    /**
+     * Multiplies the scale of a kernel into its row and recomputes the norm of its features.
+     */
+    private void foldScale(int kernelsIndex) {
 
-        kernels.set(kernelsIndex, kernel);
+        int offset = kernelsIndex * rowLength;
+        double scale = scales[kernelsIndex];
+        double squaredNorm = 0.0D;
 
+        for (int i = 0; i < rowLength; ++i) {
+            if (scale != 1.0D) {
+                centroids[offset + i] *= scale;
+            }
+            if (i >= numLabels) {
+                squaredNorm += centroids[offset + i] * centroids[offset + i];
+            }
+        }
+
+        scales[kernelsIndex] = 1.0D;
+        squaredNorms[kernelsIndex] = squaredNorm;
     }
 
     private void updateCluster(Instance multiLabelInstance) {
 
+        loadQuery(multiLabelInstance);
+
         char model = 'U';
-        double[] distances = get1ToNDistances(kernels, multiLabelInstance, model);
-        int kernelsIndex = nArgMin(1, distances)[0];
-        int num_insert = countsInsertList.get(kernelsIndex);
+        getKernelDistances(model);
+        int kernelsIndex = argMin(kernelDistances, numKernels);
+        int num_insert = countsInsert[kernelsIndex];
 
         int replace;
         if (num_insert < size_RS) {
             reservoirsamp_Mat.get(kernelsIndex).add(multiLabelInstance);
+            addRow(multiLabelInstance);
 
         }else{
 
             replace = ran.nextInt(num_insert);
 
             if (replace < size_RS){
-                reservoirsamp_Mat.get(kernelsIndex).set(replace, multiLabelInstance);
+                rows.remove(reservoirsamp_Mat.get(kernelsIndex).set(replace, multiLabelInstance));
+                addRow(multiLabelInstance);
             }
         }
 
-        calculateCenter(kernelsIndex, multiLabelInstance);
-        countsInsertList.set(kernelsIndex,countsInsertList.get(kernelsIndex)+1);
+        calculateCenter(kernelsIndex);
+        countsInsert[kernelsIndex]++;
     }
 
 
     @Override
     public Prediction getPredictionForInstance(MultiLabelInstance multiLabelInstance) {
 
-        Instance instance = sparseTodense(multiLabelInstance);
-
         int numLabels = multiLabelInstance.numberOutputTargets();
         MultiLabelPrediction prediction = new MultiLabelPrediction(numLabels);
 
-        char model = 'P';
-        List<Instance> preInstances = new ArrayList<Instance>();
-        if (kernels.size() != 0 ) {
-            double[] distances = get1ToNDistances(kernels, multiLabelInstance, model);
-            int kernelsIndex = nArgMin(1, distances)[0];
-            for(int i = 0; i < reservoirsamp_Mat.get(kernelsIndex).size(); i++)
-                preInstances.add(reservoirsamp_Mat.get(kernelsIndex).get(i));
-            for(int j = 0; j < window.size(); j++)
-                preInstances.add(window.get(j));
-
+        initBuffers(multiLabelInstance);
+        loadQuery(multiLabelInstance);
+
+        // Candidates are the reservoirs of the nearest kernels followed by the window, or the initial stream
+        candidates.clear();
+        if (numKernels != 0 ) {
+            char model = 'P';
+            getKernelDistances(model);
+            for (int probe : nearestProbes(Math.min(numProbesOption.getValue(), numKernels), kernelDistances, numKernels))
+                candidates.addAll(reservoirsamp_Mat.get(probe));
+            candidates.addAll(window);
         }else{
-            for(int j = 0; j < initialStream.size(); j++)
-                preInstances.add(initialStream.get(j));
+            candidates.addAll(initialStream);
         }
 
+        int numCandidates = candidates.size();
+        if (candidateDistances.length < numCandidates)
+            candidateDistances = new double[Math.max(numCandidates, 2 * candidateDistances.length)];
 
-        double[] preDistance = get1ToNDistances(preInstances, multiLabelInstance, model);
+        for (int i = 0; i < numCandidates; i++)
+            candidateDistances[i] = getFeatureDistance(candidates.get(i));
 
-        int[] nnIndices = nArgMin(Math.min(preDistance.length, size_nn), preDistance);
+        int[] nnIndices = nArgMin(Math.min(numCandidates, size_nn), candidateDistances, numCandidates);
         for(int j = 0; j < numLabels; j++)
         {
             int count = 0;
 
             for (int nnIdx : nnIndices){
-                if (preInstances.get(nnIdx).classValue(j) == 1)
+                if (candidates.get(nnIdx).classValue(j) == 1)
                     count++;
             }
 
@@ -375,6 +567,7 @@ public class OMK extends AbstractMultiLabelLearner implements MultiLabelClassifi
             prediction.setVotes(j, new double[]{1.0 - relativeFrequency, relativeFrequency});
         }
 
+        candidates.clear();
         return prediction;
 
     }
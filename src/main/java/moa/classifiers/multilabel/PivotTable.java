@@ -0,0 +1,276 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.function.IntFunction;
+import java.util.function.ToDoubleBiFunction;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Distances from a few pivot instances to every instance of a window (LAESA). By the triangle inequality,
+ * |d(q, p) - d(x, p)| is a lower bound of d(q, x), so an instance whose bound exceeds the current k-th nearest
+ * distance can be skipped without computing its distance. Pivots are chosen farthest-first from the window, and
+ * the table is rebuilt whenever the metric changes (e.g. the normalization ranges widen).
+ * The metric is passed to the methods that need it, so that the table holds no reference to the learner.
+ */
+public class PivotTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Relative slack of the bounds, covering the rounding of the distances
+	private static final double SLACK = 1e-9;
+
+	private int numPivots;
+	private Instance[] pivots;
+	private int numChosen;
+	private IdentityHashMap<Instance, double[]> pivotDistances = new IdentityHashMap<Instance, double[]>();
+	private boolean stale = true;
+
+	private long numChecked;
+	private long numPruned;
+
+	public PivotTable(int numPivots) {
+		this.numPivots = numPivots;
+		this.pivots = new Instance[numPivots];
+	}
+
+	/**
+	 * Marks the distances as outdated, the table is rebuilt on the next call to ensure.
+	 */
+	public void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * Rebuilds the table from the n samples of the window when the metric changed or more pivots can be chosen.
+	 */
+	public void ensure(IntFunction<Instance> samples, int n, ToDoubleBiFunction<Instance, Instance> metric) {
+
+		if(!stale && (numChosen == numPivots || n <= numChosen))
+			return;
+
+		pivotDistances.clear();
+		numChosen = 0;
+		stale = false;
+
+		double[][] distances = new double[n][numPivots];
+		double[] minDistances = new double[n];
+		Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+
+		int next = 0;
+
+		while (numChosen < numPivots && numChosen < n) {
+			Instance pivot = samples.apply(next);
+			double farthest = -1;
+
+			for (int i = 0; i < n; i++) {
+				distances[i][numChosen] = metric.applyAsDouble(samples.apply(i), pivot);
+				minDistances[i] = Math.min(minDistances[i], distances[i][numChosen]);
+
+				if(minDistances[i] > farthest) {
+					farthest = minDistances[i];
+					next = i;
+				}
+			}
+
+			pivots[numChosen++] = pivot;
+		}
+
+		for (int i = 0; i < n; i++)
+			pivotDistances.put(samples.apply(i), distances[i]);
+	}
+
+	/**
+	 * Adds an instance entering the window. Ignored while the table is outdated.
+	 */
+	public void add(Instance instance, ToDoubleBiFunction<Instance, Instance> metric) {
+		if(!stale)
+			pivotDistances.put(instance, computeDistances(instance, metric));
+	}
+
+	/**
+	 * Removes an instance leaving the window. Pivots are kept as reference points until the next rebuild.
+	 */
+	public void remove(Instance instance) {
+		pivotDistances.remove(instance);
+	}
+
+	/**
+	 * Returns the distances from the query to the pivots.
+	 */
+	public double[] queryDistances(Instance query, ToDoubleBiFunction<Instance, Instance> metric) {
+		double[] distances = pivotDistances.get(query);
+		return distances != null ? distances : computeDistances(query, metric);
+	}
+
+	private double[] computeDistances(Instance instance, ToDoubleBiFunction<Instance, Instance> metric) {
+		double[] distances = new double[numPivots];
+
+		for (int j = 0; j < numChosen; j++)
+			distances[j] = metric.applyAsDouble(instance, pivots[j]);
+
+		return distances;
+	}
+
+	/**
+	 * Returns whether the distance between the query and the instance is certainly greater than the bound.
+	 */
+	public boolean exceeds(double[] queryDistances, Instance instance, double bound) {
+		numChecked++;
+
+		double[] distances = pivotDistances.get(instance);
+
+		if(distances == null)
+			return false;
+
+		for (int j = 0; j < numChosen; j++) {
+			if(Math.abs(queryDistances[j] - distances[j]) - SLACK * (queryDistances[j] + distances[j]) > bound) {
+				numPruned++;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns a lower bound of the distance between the query and the instance.
+	 */
+	public double lowerBound(double[] queryDistances, Instance instance) {
+		double[] distances = pivotDistances.get(instance);
+		double bound = 0;
+
+		if(distances != null)
+			for (int j = 0; j < numChosen; j++)
+				bound = Math.max(bound, Math.abs(queryDistances[j] - distances[j]) - SLACK * (queryDistances[j] + distances[j]));
+
+		return bound;
+	}
+
+	/**
+	 * Returns the fraction of instances skipped without computing their distance.
+	 */
+	public double getPruneRate() {
+		return numChecked == 0 ? 0 : numPruned / (double) numChecked;
+	}
+
+	/**
+	 * Ranks the samples by increasing distance to a query, progressively and exactly. Ties go to the last sample, as
+	 * when repeatedly selecting the minimum with <=. The distance of a sample is only computed once the lower bounds
+	 * of the pivots can no longer tell it apart from the next one; without a table every distance is computed. The
+	 * buffers are kept from one query to the next, so a learner ranks every query with the same instance.
+	 */
+	public static class Ranking {
+
+		private PivotTable table;
+		private Instance query;
+		private IntFunction<Instance> samples;
+		private ToDoubleBiFunction<Instance, Instance> metric;
+		private int n;
+
+		// Lower bounds rounded down to floats in the high halves and sample indices in the low halves, sorted
+		private long[] byLowerBound = new long[0];
+		private double[] distances = new double[0];
+		private int numResolved;
+
+		// Binary heap of the samples whose distance is computed, the next nearest first
+		private int[] heap = new int[0];
+		private int heapSize;
+
+		/**
+		 * Starts ranking the n samples by their distance to the query.
+		 */
+		public void rank(PivotTable table, Instance query, IntFunction<Instance> samples, int n, ToDoubleBiFunction<Instance, Instance> metric) {
+			this.table = table;
+			this.query = query;
+			this.samples = samples;
+			this.metric = metric;
+			this.n = n;
+			this.numResolved = 0;
+			this.heapSize = 0;
+
+			if(byLowerBound.length < n) {
+				byLowerBound = new long[n];
+				distances = new double[n];
+				heap = new int[n];
+			}
+
+			if(table != null) {
+				table.ensure(samples, n, metric);
+				double[] queryDistances = table.queryDistances(query, metric);
+
+				// A bound rounded down is still a bound, and sorting the keys sorts the bounds that are compared
+				for (int i = 0; i < n; i++) {
+					double bound = table.lowerBound(queryDistances, samples.apply(i));
+					float rounded = (float) bound;
+					if(rounded > bound)
+						rounded = Math.nextDown(rounded);
+					byLowerBound[i] = (long) Float.floatToRawIntBits(rounded) << 32 | i;
+				}
+
+				Arrays.sort(byLowerBound, 0, n);
+
+				// Every sample counts as pruned until its distance is computed
+				table.numChecked += n;
+				table.numPruned += n;
+			} else {
+				for (int i = 0; i < n; i++)
+					byLowerBound[i] = i;
+			}
+		}
+
+		/**
+		 * Returns the index of the next nearest sample, or -1 when all of them were ranked.
+		 */
+		public int next() {
+			while (numResolved < n && (heapSize == 0 || Float.intBitsToFloat((int) (byLowerBound[numResolved] >>> 32)) <= distances[heap[0]])) {
+				int i = (int) byLowerBound[numResolved++];
+				distances[i] = metric.applyAsDouble(query, samples.apply(i));
+				push(i);
+
+				if(table != null)
+					table.numPruned--;
+			}
+
+			return heapSize == 0 ? -1 : poll();
+		}
+
+		/**
+		 * Returns whether sample a is ranked before sample b: nearer, or as near and later.
+		 */
+		private boolean before(int a, int b) {
+			return distances[a] != distances[b] ? Double.compare(distances[a], distances[b]) < 0 : a > b;
+		}
+
+		private void push(int i) {
+			int p = heapSize++;
+
+			while (p > 0 && before(i, heap[(p - 1) >>> 1])) {
+				heap[p] = heap[(p - 1) >>> 1];
+				p = (p - 1) >>> 1;
+			}
+			heap[p] = i;
+		}
+
+		private int poll() {
+			int first = heap[0];
+			int last = heap[--heapSize];
+			int p = 0;
+
+			while (2 * p + 1 < heapSize) {
+				int child = 2 * p + 1;
+				if(child + 1 < heapSize && before(heap[child + 1], heap[child]))
+					child++;
+				if(!before(heap[child], last))
+					break;
+				heap[p] = heap[child];
+				p = child;
+			}
+			heap[p] = last;
+
+			return first;
+		}
+	}
+}
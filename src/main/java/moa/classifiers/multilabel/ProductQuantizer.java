@@ -0,0 +1,228 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Product quantization of the input attributes of instances for cosine distances. The attributes are split into
+ * contiguous sub-vectors, each encoded by the nearest centroid of a codebook trained by k-means on the first instances
+ * of the stream. The centroids keep raw values, so the codes stay valid when the ranges of the learner widen. The
+ * centroids are normalized again when the ranges change, and each query fills a table of its products with every
+ * normalized centroid.
+ */
+public class ProductQuantizer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int MAX_CENTROIDS = 256;
+
+	private static final int ITERATIONS = 10;
+
+	private RangeNormalizer normalizer;
+	private int numFeatures;
+	private int numSubspaces;
+	private int numCentroids;
+	private int[] subspaceStart;
+
+	// Centroids of each subspace, one row of its width per centroid
+	private double[][] centroids;
+
+	// Normalized centroids and their squared norms, for the version of the ranges they were computed for
+	private double[][] normalizedCentroids;
+	private double[][] normTable;
+	private long normsVersion;
+
+	private double[] query;
+	private double[][] dotTable;
+	private double queryNorm;
+
+	/**
+	 * Creates a quantizer of the given number of sub-vectors, normalizing by the given ranges, which are shared with
+	 * and updated by the learner.
+	 */
+	public ProductQuantizer(RangeNormalizer normalizer, int numSubspaces) {
+		this.normalizer = normalizer;
+		this.numFeatures = normalizer.numAttributes();
+		this.numSubspaces = Math.max(1, Math.min(numSubspaces, numFeatures));
+		this.subspaceStart = new int[this.numSubspaces + 1];
+		this.query = new double[numFeatures];
+
+		for (int m = 0; m <= this.numSubspaces; m++)
+			subspaceStart[m] = m * numFeatures / this.numSubspaces;
+	}
+
+	/**
+	 * Returns the raw input attributes of an instance, as used for training.
+	 */
+	public static double[] features(Instance instance) {
+		double[] features = new double[instance.numInputAttributes()];
+
+		for (int i = 0; i < features.length; i++)
+			features[i] = instance.valueInputAttribute(i);
+
+		return features;
+	}
+
+	public boolean isTrained() {
+		return centroids != null;
+	}
+
+	/**
+	 * Trains the codebooks by k-means on the given samples, seeded by kmeans++.
+	 */
+	public void train(List<double[]> samples, Random random) {
+		int n = samples.size();
+		numCentroids = Math.min(MAX_CENTROIDS, n);
+		centroids = new double[numSubspaces][];
+		normalizedCentroids = new double[numSubspaces][];
+		dotTable = new double[numSubspaces][numCentroids];
+		normTable = new double[numSubspaces][numCentroids];
+		normsVersion = 0;
+
+		int[] assignments = new int[n];
+
+		for (int m = 0; m < numSubspaces; m++) {
+			int from = subspaceStart[m];
+			int width = subspaceStart[m + 1] - from;
+			double[] codebook = new double[numCentroids * width];
+
+			ArrayList<Integer> seeds = CentreSeeding.chooseCentres(n, numCentroids,
+					(sample, centre) -> squaredDistance(samples.get(sample), from, samples.get(centre), from, width), random, 1);
+
+			for (int c = 0; c < numCentroids; c++)
+				System.arraycopy(samples.get(seeds.get(c)), from, codebook, c * width, width);
+
+			for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+				boolean changed = false;
+
+				for (int s = 0; s < n; s++) {
+					int nearest = nearest(codebook, width, samples.get(s), from);
+					changed |= iteration == 0 || nearest != assignments[s];
+					assignments[s] = nearest;
+				}
+
+				if(!changed)
+					break;
+
+				// Empty clusters keep their centroid
+				double[] sums = new double[numCentroids * width];
+				int[] counts = new int[numCentroids];
+
+				for (int s = 0; s < n; s++) {
+					counts[assignments[s]]++;
+					for (int i = 0; i < width; i++)
+						sums[assignments[s] * width + i] += samples.get(s)[from + i];
+				}
+
+				for (int c = 0; c < numCentroids; c++)
+					if(counts[c] > 0)
+						for (int i = 0; i < width; i++)
+							codebook[c * width + i] = sums[c * width + i] / counts[c];
+			}
+
+			centroids[m] = codebook;
+			normalizedCentroids[m] = new double[codebook.length];
+		}
+	}
+
+	private static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+		double distance = 0;
+
+		for (int i = 0; i < length; i++) {
+			double d = a[aOffset + i] - b[bOffset + i];
+			distance += d * d;
+		}
+		return distance;
+	}
+
+	private int nearest(double[] codebook, int width, double[] features, int from) {
+		int nearest = 0;
+		double minDistance = Double.MAX_VALUE;
+
+		for (int c = 0; c < numCentroids; c++) {
+			double distance = squaredDistance(codebook, c * width, features, from, width);
+			if(distance < minDistance) {
+				nearest = c;
+				minDistance = distance;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Returns the codes of the nearest centroid of every sub-vector of the instance.
+	 */
+	public byte[] encode(Instance instance) {
+		double[] features = features(instance);
+		byte[] codes = new byte[numSubspaces];
+
+		for (int m = 0; m < numSubspaces; m++)
+			codes[m] = (byte) nearest(centroids[m], subspaceStart[m + 1] - subspaceStart[m], features, subspaceStart[m]);
+
+		return codes;
+	}
+
+	private void normalizeCentroids() {
+		for (int m = 0; m < numSubspaces; m++) {
+			int from = subspaceStart[m];
+			int width = subspaceStart[m + 1] - from;
+
+			for (int c = 0; c < numCentroids; c++) {
+				double norm = 0;
+
+				for (int i = 0; i < width; i++) {
+					double val = normalizer.normalize(from + i, centroids[m][c * width + i]);
+					normalizedCentroids[m][c * width + i] = val;
+					norm += val * val;
+				}
+
+				normTable[m][c] = norm;
+			}
+		}
+
+		normsVersion = normalizer.getVersion();
+	}
+
+	/**
+	 * Fills the table of the products of the normalized query with the normalized centroids.
+	 */
+	public void setQuery(Instance instance) {
+		if(normsVersion != normalizer.getVersion())
+			normalizeCentroids();
+
+		queryNorm = 0;
+
+		for (int a = 0; a < numFeatures; a++) {
+			query[a] = normalizer.normalize(a, instance.valueInputAttribute(a));
+			queryNorm += query[a] * query[a];
+		}
+
+		for (int m = 0; m < numSubspaces; m++) {
+			int from = subspaceStart[m];
+			int width = subspaceStart[m + 1] - from;
+
+			for (int c = 0; c < numCentroids; c++)
+				dotTable[m][c] = RowOperators.dotProduct(normalizedCentroids[m], c * width, query, from, width);
+		}
+	}
+
+	/**
+	 * Returns the approximate cosine distance between the query and the instance of the given codes.
+	 */
+	public double distance(byte[] codes) {
+		double dot = 0;
+		double norm = 0;
+
+		for (int m = 0; m < numSubspaces; m++) {
+			int c = codes[m] & 0xFF;
+			dot += dotTable[m][c];
+			norm += normTable[m][c];
+		}
+
+		return 1 - dot / (Math.sqrt(norm) * Math.sqrt(queryNorm));
+	}
+}
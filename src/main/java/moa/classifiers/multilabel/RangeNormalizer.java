@@ -0,0 +1,144 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Ranges of the input attributes seen by a learner, from 0 to 0 until widened by the training instances, which
+ * normalize the attributes as (value - min) / (max - min). The reciprocals of the spans are kept so the distance
+ * loops multiply instead of dividing, and are 0 for empty ranges, so those attributes add nothing without a branch.
+ * The version changes only when a range widens, so caches of normalized values can tell when they are stale, and
+ * the ranges can be frozen after a number of instances so that steady streams never invalidate them again.
+ */
+public class RangeNormalizer implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final double[] attributeRangeMin;
+	private final double[] attributeRangeMax;
+	private final double[] inverseSpan;
+
+	private long version = 1;
+	private long numUpdates;
+	private long freezeAfter;
+
+	/**
+	 * Creates empty ranges of the given number of input attributes, never frozen.
+	 */
+	public RangeNormalizer(int numAttributes) {
+		this.attributeRangeMin = new double[numAttributes];
+		this.attributeRangeMax = new double[numAttributes];
+		this.inverseSpan = new double[numAttributes];
+	}
+
+	/**
+	 * Freezes the ranges after the given number of updates, or never when 0.
+	 */
+	public void setFreezeAfter(long freezeAfter) {
+		this.freezeAfter = freezeAfter;
+	}
+
+	public boolean isFrozen() {
+		return freezeAfter > 0 && numUpdates >= freezeAfter;
+	}
+
+	/**
+	 * Widens the ranges to the instance, returning whether any of them changed.
+	 */
+	public boolean update(Instance instance) {
+		if(isFrozen())
+			return false;
+
+		numUpdates++;
+
+		boolean widened = false;
+		for (int i = 0; i < attributeRangeMin.length; i++)
+			widened |= widen(i, instance.valueInputAttribute(i));
+
+		if(widened)
+			version++;
+		return widened;
+	}
+
+	/**
+	 * Widens the ranges of the given attributes to the instance, returning whether any of them changed.
+	 */
+	public boolean update(Instance instance, int[] attributes) {
+		if(isFrozen())
+			return false;
+
+		numUpdates++;
+
+		boolean widened = false;
+		for (int a = 0; a < attributes.length; a++)
+			widened |= widen(attributes[a], instance.valueInputAttribute(attributes[a]));
+
+		if(widened)
+			version++;
+		return widened;
+	}
+
+	private boolean widen(int i, double value) {
+		if(value < attributeRangeMin[i])
+			attributeRangeMin[i] = value;
+		else if(value > attributeRangeMax[i])
+			attributeRangeMax[i] = value;
+		else
+			return false;
+
+		inverseSpan[i] = 1 / (attributeRangeMax[i] - attributeRangeMin[i]);
+		return true;
+	}
+
+	/**
+	 * Empties the ranges and starts counting the updates to freeze them again.
+	 */
+	public void reset() {
+		Arrays.fill(attributeRangeMin, 0);
+		Arrays.fill(attributeRangeMax, 0);
+		Arrays.fill(inverseSpan, 0);
+		numUpdates = 0;
+		version++;
+	}
+
+	/**
+	 * Returns the normalized value of the attribute, 0 when its range is empty.
+	 */
+	public double normalize(int attribute, double value) {
+		return (value - attributeRangeMin[attribute]) * inverseSpan[attribute];
+	}
+
+	public int numAttributes() {
+		return attributeRangeMin.length;
+	}
+
+	/**
+	 * Returns a number that changes whenever the ranges do.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the minimums, shared with the normalizer and updated in place.
+	 */
+	public double[] getMin() {
+		return attributeRangeMin;
+	}
+
+	/**
+	 * Returns the maximums, shared with the normalizer and updated in place.
+	 */
+	public double[] getMax() {
+		return attributeRangeMax;
+	}
+
+	/**
+	 * Returns the reciprocals of the spans, 0 for empty ranges, shared with the normalizer and updated in place.
+	 */
+	public double[] getInverseSpan() {
+		return inverseSpan;
+	}
+}
@@ -0,0 +1,60 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Embedding of instances into normalized rows the way the Euclidean DistanceKernel measures them: dense instances by
+ * their normalized attributes, sparse ones by their normalized stored values and 0 elsewhere. The layout of the
+ * stream is fixed by the first instance, as in DistanceKernel.create.
+ */
+class RowEmbedding implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final RangeNormalizer normalizer;
+	private final int numFeatures;
+
+	private boolean sparse;
+	private int firstInput = -1;
+	private int endInput;
+
+	RowEmbedding(RangeNormalizer normalizer) {
+		this.normalizer = normalizer;
+		this.numFeatures = normalizer.numAttributes();
+	}
+
+	/**
+	 * Returns whether the stream is sparse, once an instance was embedded.
+	 */
+	boolean isSparse() {
+		return sparse;
+	}
+
+	/**
+	 * Writes the normalized embedding of the instance into the values.
+	 */
+	void embed(Instance instance, double[] values) {
+		if(firstInput < 0) {
+			sparse = instance.numValues() != instance.numAttributes();
+			// The input attributes are stored after the labels, or before them
+			firstInput = instance.classIndex() == 0 ? instance.numOutputAttributes() : 0;
+			endInput = instance.classIndex() == 0 ? instance.numAttributes() : instance.classIndex();
+		}
+
+		if(!sparse) {
+			for (int i = 0; i < numFeatures; i++)
+				values[i] = normalizer.normalize(i, instance.valueInputAttribute(i));
+			return;
+		}
+
+		Arrays.fill(values, 0, numFeatures, 0);
+		for (int p = 0; p < instance.numValues(); p++) {
+			int index = instance.index(p);
+			if(index >= firstInput && index < endInput)
+				values[index - firstInput] = normalizer.normalize(index - firstInput, instance.valueSparse(p));
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package moa.classifiers.multilabel;
+
+/**
+ * Distances and products over rows of primitive values, such as the centroid matrix of OMK.
+ * This is the scalar version for Java 11; on Java 17 and later the multi-release jar replaces it with one built on
+ * the Vector API, used when the jdk.incubator.vector module is added to the runtime.
+ */
+public final class RowOperators {
+
+    private RowOperators() {
+    }
+
+    /**
+     * Returns whether the operations run on the vector lanes of the CPU.
+     */
+    public static boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two rows.
+     */
+    public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return ScalarRowOperators.squaredDistance(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two rows, those of the first one multiplied by the scale.
+     */
+    public static double squaredDistance(double[] a, int aOffset, double scale, double[] b, int bOffset, int length) {
+        return ScalarRowOperators.squaredDistance(a, aOffset, scale, b, bOffset, length);
+    }
+
+    /**
+     * Returns the dot product of length values of two rows.
+     */
+    public static double dotProduct(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return ScalarRowOperators.dotProduct(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two float rows, accumulated in float.
+     */
+    public static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return ScalarRowOperators.squaredDistance(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two float rows, accumulated in double.
+     */
+    public static double mixedSquaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return ScalarRowOperators.mixedSquaredDistance(a, aOffset, b, bOffset, length);
+    }
+}
@@ -0,0 +1,64 @@
+package moa.classifiers.multilabel;
+
+/**
+ * Scalar loops over rows of primitive values, accumulating in the order of the values.
+ */
+final class ScalarRowOperators {
+
+    private ScalarRowOperators() {
+    }
+
+    static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+
+        double distance = 0.0D;
+
+        for (int i = 0; i < length; i++) {
+            double d = a[aOffset + i] - b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    static double squaredDistance(double[] a, int aOffset, double scale, double[] b, int bOffset, int length) {
+
+        double distance = 0.0D;
+
+        for (int i = 0; i < length; i++) {
+            double d = a[aOffset + i] * scale - b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    static double dotProduct(double[] a, int aOffset, double[] b, int bOffset, int length) {
+
+        double dot = 0.0D;
+
+        for (int i = 0; i < length; i++) {
+            dot += a[aOffset + i] * b[bOffset + i];
+        }
+        return dot;
+    }
+
+    static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+
+        float distance = 0.0F;
+
+        for (int i = 0; i < length; i++) {
+            float d = a[aOffset + i] - b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    static double mixedSquaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+
+        double distance = 0.0D;
+
+        for (int i = 0; i < length; i++) {
+            double d = (double) a[aOffset + i] - (double) b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,68 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Reference-counted store of instances. Learners keep only the slot of the instances in their window,
+ * so that several learners (e.g. the members of an ensemble) can share a single copy of the stream.
+ * A slot is recycled once the last learner referencing it releases it. References may be taken and
+ * released concurrently by learners trained in parallel.
+ */
+public class SharedInstanceStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private Instance[] instances = new Instance[16];
+	private int[] references = new int[16];
+	private int[] freeSlots = new int[16];
+	private int numFreeSlots;
+	private int numSlots;
+
+	/**
+	 * Stores an instance and returns its slot, referenced once by the caller.
+	 */
+	public synchronized int add(Instance instance) {
+		int slot;
+
+		if(numFreeSlots > 0) {
+			slot = freeSlots[--numFreeSlots];
+		} else {
+			if(numSlots == instances.length) {
+				instances = Arrays.copyOf(instances, 2 * numSlots);
+				references = Arrays.copyOf(references, 2 * numSlots);
+				freeSlots = Arrays.copyOf(freeSlots, 2 * numSlots);
+			}
+			slot = numSlots++;
+		}
+
+		instances[slot] = instance;
+		references[slot] = 1;
+
+		return slot;
+	}
+
+	public synchronized void retain(int slot) {
+		references[slot]++;
+	}
+
+	public synchronized void release(int slot) {
+		if(--references[slot] == 0) {
+			instances[slot] = null;
+			freeSlots[numFreeSlots++] = slot;
+		}
+	}
+
+	public Instance get(int slot) {
+		return instances[slot];
+	}
+
+	/**
+	 * Returns the number of instances currently referenced.
+	 */
+	public int size() {
+		return numSlots - numFreeSlots;
+	}
+}
@@ -0,0 +1,311 @@
+package moa.classifiers.multilabel;
+
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstanceData;
+import com.yahoo.labs.samoa.instances.InstanceImpl;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.SparseInstanceData;
+
+/**
+ * Sparse kernel updated in place. Its non-zero values live in index/value buffers which are merged with every
+ * instance learned or unlearned, and which only grow when the union of the non-zeros does, so that updating a
+ * kernel creates no objects. Copies are regular sparse instances.
+ */
+public class SparseCentroid extends InstanceImpl {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Values values;
+
+	/**
+	 * Creates a centroid holding the values of a sparse kernel, which is left untouched.
+	 */
+	public SparseCentroid(Instance kernel, Instances dataset) {
+		this(new Values(kernel));
+		setDataset(dataset);
+	}
+
+	private SparseCentroid(Values values) {
+		super(1.0, values);
+		this.values = values;
+	}
+
+	/**
+	 * Moves the centroid of numMemory instances towards (rate = 1) or away from (rate = -1) an instance.
+	 */
+	public void update(Instance instance, int numMemory, int rate) {
+		values.merge(instance, numMemory, rate);
+	}
+
+	/**
+	 * Removes the values of the attributes in [from, to) which are 0, smaller in magnitude than the threshold, or
+	 * not among the maxValues largest in magnitude. The buffers are compacted, so that later merges and distances
+	 * no longer visit them.
+	 */
+	public void prune(int from, int to, double threshold, int maxValues) {
+		values.prune(from, to, threshold, maxValues);
+	}
+
+	/**
+	 * Non-zero values of the centroid, followed by the spare capacity of the buffers.
+	 */
+	private static class Values implements InstanceData {
+
+		private static final long serialVersionUID = 1L;
+
+		private int[] indices;
+		private double[] attributeValues;
+		private int size;
+		private int numAttributes;
+
+		// Buffers the merge writes into, swapped with the values afterwards
+		private int[] mergedIndices;
+		private double[] mergedValues;
+
+		Values(Instance kernel) {
+			numAttributes = kernel.numAttributes();
+			size = kernel.numValues();
+			indices = new int[Math.max(size, 1)];
+			attributeValues = new double[Math.max(size, 1)];
+			mergedIndices = new int[indices.length];
+			mergedValues = new double[indices.length];
+
+			for (int p = 0; p < size; p++) {
+				indices[p] = kernel.index(p);
+				attributeValues[p] = kernel.valueSparse(p);
+			}
+		}
+
+		void merge(Instance instance, int numMemory, int rate) {
+
+			int capacity = size + instance.numValues();
+			if (mergedIndices.length < capacity) {
+				mergedIndices = new int[Math.max(capacity, 2 * mergedIndices.length)];
+				mergedValues = new double[mergedIndices.length];
+			}
+
+			int numMerged = 0;
+			int firstI = -1, secondI = -1;
+			int secondNumValues = instance.numValues();
+
+			for (int p1 = 0, p2 = 0; p1 < size || p2 < secondNumValues;) {
+
+				if (p1 >= size) {
+					firstI = numAttributes;
+				} else {
+					firstI = indices[p1];
+				}
+
+				if (p2 >= secondNumValues) {
+					secondI = numAttributes;
+				} else {
+					secondI = instance.index(p2);
+				}
+
+				double centroid;
+				if (firstI == secondI) {
+					centroid = attributeValues[p1] * (double) numMemory;
+					centroid += rate * instance.valueSparse(p2);
+					mergedIndices[numMerged] = firstI;
+					p1++;
+					p2++;
+				} else if (firstI > secondI) {
+					centroid = rate * instance.valueSparse(p2);
+					mergedIndices[numMerged] = secondI;
+					p2++;
+				} else {
+					centroid = attributeValues[p1] * (double) numMemory;
+					mergedIndices[numMerged] = firstI;
+					p1++;
+				}
+				mergedValues[numMerged++] = centroid / (double) (numMemory + 1);
+			}
+
+			int[] swappedIndices = indices;
+			double[] swappedValues = attributeValues;
+			indices = mergedIndices;
+			attributeValues = mergedValues;
+			mergedIndices = swappedIndices;
+			mergedValues = swappedValues;
+			size = numMerged;
+		}
+
+		void prune(int from, int to, double threshold, int maxValues) {
+
+			// Magnitudes of the candidates, in the spare merge buffer
+			if (mergedValues.length < size) {
+				mergedIndices = new int[indices.length];
+				mergedValues = new double[indices.length];
+			}
+
+			int numCandidates = 0;
+			for (int p = 0; p < size; p++) {
+				double magnitude = Math.abs(attributeValues[p]);
+				if (indices[p] >= from && indices[p] < to && magnitude != 0 && magnitude >= threshold)
+					mergedValues[numCandidates++] = magnitude;
+			}
+
+			// Past the bound, the candidates above the cut are kept, then those equal to it by index
+			double cut = 0.0;
+			int numAtCut = Integer.MAX_VALUE;
+			if (numCandidates > maxValues) {
+				cut = maxValues > 0 ? select(mergedValues, numCandidates, maxValues - 1) : Double.POSITIVE_INFINITY;
+				numAtCut = maxValues;
+				for (int c = 0; c < numCandidates; c++)
+					if (mergedValues[c] > cut)
+						numAtCut--;
+			}
+
+			int numKept = 0;
+			for (int p = 0; p < size; p++) {
+				if (indices[p] >= from && indices[p] < to) {
+					double magnitude = Math.abs(attributeValues[p]);
+					if (magnitude == 0 || magnitude < threshold || magnitude < cut)
+						continue;
+					if (magnitude == cut && numAtCut-- <= 0)
+						continue;
+				}
+				indices[numKept] = indices[p];
+				attributeValues[numKept++] = attributeValues[p];
+			}
+			size = numKept;
+		}
+
+		/**
+		 * Returns the k-th largest of the first n values (from 0), reordering them.
+		 */
+		private static double select(double[] values, int n, int k) {
+			int lo = 0;
+			int hi = n - 1;
+
+			while (lo < hi) {
+				double pivot = values[(lo + hi) >>> 1];
+				int i = lo;
+				int j = hi;
+
+				while (i <= j) {
+					while (values[i] > pivot)
+						i++;
+					while (values[j] < pivot)
+						j--;
+					if (i <= j) {
+						double swapped = values[i];
+						values[i++] = values[j];
+						values[j--] = swapped;
+					}
+				}
+
+				if (k <= j)
+					hi = j;
+				else if (k >= i)
+					lo = i;
+				else
+					return values[k];
+			}
+			return values[k];
+		}
+
+		private int locateIndex(int index) {
+			return Arrays.binarySearch(indices, 0, size, index);
+		}
+
+		@Override
+		public int numAttributes() {
+			return numAttributes;
+		}
+
+		@Override
+		public double value(int instAttIndex) {
+			int p = locateIndex(instAttIndex);
+			return p >= 0 ? attributeValues[p] : 0.0;
+		}
+
+		@Override
+		public boolean isMissing(int instAttIndex) {
+			return Double.isNaN(value(instAttIndex));
+		}
+
+		@Override
+		public int numValues() {
+			return size;
+		}
+
+		@Override
+		public int index(int i) {
+			return indices[i];
+		}
+
+		@Override
+		public double valueSparse(int i) {
+			return attributeValues[i];
+		}
+
+		@Override
+		public boolean isMissingSparse(int p) {
+			return Double.isNaN(attributeValues[p]);
+		}
+
+		@Override
+		public double[] toDoubleArray() {
+			double[] array = new double[numAttributes];
+			for (int p = 0; p < size; p++)
+				array[indices[p]] = attributeValues[p];
+			return array;
+		}
+
+		@Override
+		public void setValue(int attributeIndex, double d) {
+			int p = locateIndex(attributeIndex);
+
+			if (p >= 0) {
+				attributeValues[p] = d;
+				return;
+			}
+
+			if (size == indices.length) {
+				indices = Arrays.copyOf(indices, 2 * size);
+				attributeValues = Arrays.copyOf(attributeValues, 2 * size);
+			}
+
+			p = -p - 1;
+			System.arraycopy(indices, p, indices, p + 1, size - p);
+			System.arraycopy(attributeValues, p, attributeValues, p + 1, size - p);
+			indices[p] = attributeIndex;
+			attributeValues[p] = d;
+			size++;
+		}
+
+		@Override
+		public InstanceData copy() {
+			return new SparseInstanceData(Arrays.copyOf(attributeValues, size), Arrays.copyOf(indices, size), numAttributes);
+		}
+
+		@Override
+		public void deleteAttributeAt(int index) {
+			int p = locateIndex(index);
+			int next = p >= 0 ? p + 1 : -p - 1;
+
+			// The values after the attribute move down over its value, if any, with their indices shifted
+			int numKept = p >= 0 ? p : next;
+			for (int q = next; q < size; q++) {
+				indices[numKept] = indices[q] - 1;
+				attributeValues[numKept++] = attributeValues[q];
+			}
+
+			size = numKept;
+			numAttributes--;
+		}
+
+		@Override
+		public void insertAttributeAt(int index) {
+			int p = locateIndex(index);
+
+			for (int q = p >= 0 ? p : -p - 1; q < size; q++)
+				indices[q]++;
+
+			numAttributes++;
+		}
+	}
+}
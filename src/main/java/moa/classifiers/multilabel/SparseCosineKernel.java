@@ -0,0 +1,76 @@
+package moa.classifiers.multilabel;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Cosine distance between sparse instances, merging their stored values over the interval of indices of the input
+ * attributes fixed by the layout of the stream.
+ */
+public final class SparseCosineKernel implements DistanceKernel {
+
+	private static final long serialVersionUID = 1L;
+
+	private final double[] attributeRangeMin;
+	private final double[] inverseSpan;
+	private final int firstInput;
+	private final int endInput;
+
+	/**
+	 * Creates a kernel over the input attributes stored at the indices from firstInput to endInput, exclusive.
+	 */
+	public SparseCosineKernel(RangeNormalizer normalizer, int firstInput, int endInput) {
+		this.attributeRangeMin = normalizer.getMin();
+		this.inverseSpan = normalizer.getInverseSpan();
+		this.firstInput = firstInput;
+		this.endInput = endInput;
+	}
+
+	@Override
+	public double distance(Instance instance1, Instance instance2) {
+
+		double distance = 0.0D;
+		double distanceA = 0.0D;
+		double distanceB = 0.0D;
+		int firstNumValues  = instance1.numValues();
+		int secondNumValues = instance2.numValues();
+		int p1 = 0, p2 = 0;
+
+		// Labels stored before the input attributes
+		while (p1 < firstNumValues && instance1.index(p1) < firstInput)
+			p1++;
+		while (p2 < secondNumValues && instance2.index(p2) < firstInput)
+			p2++;
+
+		while (true) {
+			// Labels stored after the input attributes end the merge like the end of the values
+			int firstI  = p1 < firstNumValues  ? Math.min(instance1.index(p1), endInput) : endInput;
+			int secondI = p2 < secondNumValues ? Math.min(instance2.index(p2), endInput) : endInput;
+
+			if (firstI == endInput && secondI == endInput)
+				break;
+
+			if (firstI == secondI) {
+				int idx = firstI - firstInput;
+				double val1 = (instance1.valueSparse(p1) - attributeRangeMin[idx]) * inverseSpan[idx];
+				double val2 = (instance2.valueSparse(p2) - attributeRangeMin[idx]) * inverseSpan[idx];
+				distance += val1 * val2;
+				distanceA += val1 * val1;
+				distanceB += val2 * val2;
+				p1++;
+				p2++;
+			} else if (firstI > secondI) {
+				int idx = secondI - firstInput;
+				double val2 = (instance2.valueSparse(p2) - attributeRangeMin[idx]) * inverseSpan[idx];
+				distanceB += val2 * val2;
+				p2++;
+			} else {
+				int idx = firstI - firstInput;
+				double val1 = (instance1.valueSparse(p1) - attributeRangeMin[idx]) * inverseSpan[idx];
+				distanceA += val1 * val1;
+				p1++;
+			}
+		}
+
+		return 1 - distance / (Math.sqrt(distanceA) * Math.sqrt(distanceB));
+	}
+}
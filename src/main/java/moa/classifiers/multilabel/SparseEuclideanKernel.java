@@ -0,0 +1,85 @@
+package moa.classifiers.multilabel;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Euclidean distance between sparse instances, merging their stored values. The input attributes are the interval of
+ * indices fixed by the layout of the stream, so the labels are skipped without looking up the class index per value.
+ * Bounded distances are abandoned as soon as the partial sum exceeds the bound.
+ */
+public final class SparseEuclideanKernel implements DistanceKernel {
+
+	private static final long serialVersionUID = 1L;
+
+	// Relative slack of the bound, covering the rounding of the square root
+	private static final double SLACK = 1e-9;
+
+	private final double[] attributeRangeMin;
+	private final double[] inverseSpan;
+	private final int firstInput;
+	private final int endInput;
+
+	/**
+	 * Creates a kernel over the input attributes stored at the indices from firstInput to endInput, exclusive.
+	 */
+	public SparseEuclideanKernel(RangeNormalizer normalizer, int firstInput, int endInput) {
+		this.attributeRangeMin = normalizer.getMin();
+		this.inverseSpan = normalizer.getInverseSpan();
+		this.firstInput = firstInput;
+		this.endInput = endInput;
+	}
+
+	@Override
+	public double distance(Instance instance1, Instance instance2) {
+		return distance(instance1, instance2, Double.POSITIVE_INFINITY);
+	}
+
+	@Override
+	public double distance(Instance instance1, Instance instance2, double bound) {
+
+		double limit = bound * bound * (1 + SLACK);
+		double distance = 0;
+		int firstNumValues  = instance1.numValues();
+		int secondNumValues = instance2.numValues();
+		int p1 = 0, p2 = 0;
+
+		// Labels stored before the input attributes
+		while (p1 < firstNumValues && instance1.index(p1) < firstInput)
+			p1++;
+		while (p2 < secondNumValues && instance2.index(p2) < firstInput)
+			p2++;
+
+		while (true) {
+			// Labels stored after the input attributes end the merge like the end of the values
+			int firstI  = p1 < firstNumValues  ? Math.min(instance1.index(p1), endInput) : endInput;
+			int secondI = p2 < secondNumValues ? Math.min(instance2.index(p2), endInput) : endInput;
+
+			if (firstI == endInput && secondI == endInput)
+				break;
+
+			if (firstI == secondI) {
+				// The minimums cancel out, and empty ranges add 0
+				int idx = firstI - firstInput;
+				double d = (instance1.valueSparse(p1) - instance2.valueSparse(p2)) * inverseSpan[idx];
+				distance += d * d;
+				p1++;
+				p2++;
+			} else if (firstI > secondI) {
+				int idx = secondI - firstInput;
+				double val2 = (instance2.valueSparse(p2) - attributeRangeMin[idx]) * inverseSpan[idx];
+				distance += val2 * val2;
+				p2++;
+			} else {
+				int idx = firstI - firstInput;
+				double val1 = (instance1.valueSparse(p1) - attributeRangeMin[idx]) * inverseSpan[idx];
+				distance += val1 * val1;
+				p1++;
+			}
+
+			if(distance > limit)
+				return Double.POSITIVE_INFINITY;
+		}
+
+		return Math.sqrt(distance);
+	}
+}
@@ -1,8 +1,6 @@
 package moa.classifiers.multilabel;
 
 import com.yahoo.labs.samoa.instances.Instance;
-import com.yahoo.labs.samoa.instances.InstancesHeader;
-import com.yahoo.labs.samoa.instances.SparseInstance;
 import moa.core.DoubleVector;
 
 import java.util.ArrayList;
@@ -11,7 +9,20 @@ import java.util.ArrayList;
 public class VectorOperators {
 
 
+    /**
+     * Dot product of the input attributes of an instance and the weights. Dense instances pair the input attribute i
+     * with the weight i and go through RowOperators.
+     */
     public static double dotProd(Instance inst1, DoubleVector weights) {
+        if (inst1.numValues() == inst1.numAttributes()) { // Dense Instance
+            int n = Math.min(inst1.numInputAttributes(), weights.numValues());
+            double[] row = new double[n];
+            for (int i = 0; i < n; i++) {
+                row[i] = inst1.valueInputAttribute(i);
+            }
+            return RowOperators.dotProduct(row, 0, weights.getArrayRef(), 0, n);
+        }
+
         double result = 0.0D;
         int n1 = inst1.numValues();
         int n2 = weights.numValues();
@@ -51,6 +62,23 @@ public class VectorOperators {
         return result;
     }
 
+    /**
+     * Normalized input attributes of a dense instance, 0 for the attributes of empty range. The learners that scan a
+     * window keep such rows in InstanceRows instead of normalizing their samples for every distance.
+     */
+    private static double[] normalizedRow(Instance instance, double[] attributeRangeMax, double[] attributeRangeMin) {
+
+        double[] row = new double[instance.numInputAttributes()];
+
+        for (int i = 0; i < row.length; i++) {
+            double span = attributeRangeMax[i] - attributeRangeMin[i];
+            if (span != 0) {
+                row[i] = (instance.valueInputAttribute(i) - attributeRangeMin[i]) / span;
+            }
+        }
+        return row;
+    }
+
     /**
      * Cosine Similarity  of feature vectors
      */
@@ -62,20 +90,12 @@ public class VectorOperators {
 
         if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
         {
-            for(int i = 0; i < instance1.numInputAttributes(); i++)
-            {
-                double val1 = instance1.valueInputAttribute(i);
-                double val2 = instance2.valueInputAttribute(i);
+            double[] row1 = normalizedRow(instance1, attributeRangeMax, attributeRangeMin);
+            double[] row2 = normalizedRow(instance2, attributeRangeMax, attributeRangeMin);
 
-                if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-                {
-                    val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-                    val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-                    distance += val1 * val2;
-                    distanceA += val1 * val1;
-                    distanceB += val2 * val2;
-                }
-            }
+            distance = RowOperators.dotProduct(row1, 0, row2, 0, row1.length);
+            distanceA = RowOperators.dotProduct(row1, 0, row1, 0, row1.length);
+            distanceB = RowOperators.dotProduct(row2, 0, row2, 0, row2.length);
         }
         else // Sparse Instance
         {
@@ -269,18 +289,10 @@ public class VectorOperators {
 
         if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
         {
-            for(int i = 0; i < instance1.numInputAttributes(); i++)
-            {
-                double val1 = instance1.valueInputAttribute(i);
-                double val2 = instance2.valueInputAttribute(i);
+            double[] row1 = normalizedRow(instance1, attributeRangeMax, attributeRangeMin);
+            double[] row2 = normalizedRow(instance2, attributeRangeMax, attributeRangeMin);
 
-                if(attributeRangeMax[i] - attributeRangeMin[i] != 0)
-                {
-                    val1 = (val1 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-                    val2 = (val2 - attributeRangeMin[i]) / (attributeRangeMax[i] - attributeRangeMin[i]);
-                    distance += (val1 - val2)*(val1 - val2);
-                }
-            }
+            distance = RowOperators.squaredDistance(row1, 0, row2, 0, row1.length);
         }
         else // Sparse Instance
         {
@@ -453,6 +465,115 @@ public class VectorOperators {
 
     }
 
+    /**
+     * Packs the labels of an instance into 64-bit words, or returns null unless they are all 0 or 1.
+     */
+    public static long[] packLabels(Instance instance) {
+
+        int numLabels = instance.numberOutputTargets();
+        long[] labels = new long[(numLabels + 63) >>> 6];
+
+        for (int j = 0; j < numLabels; j++) {
+            double value = instance.classValue(j);
+            if (value == 1) {
+                labels[j >>> 6] |= 1L << j;
+            } else if (value != 0) {
+                return null;
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Cosine distance of packed labels, as getCosLab on the instances they were packed from.
+     */
+    public static double getCosLab(long[] labels1, long[] labels2) {
+
+        int distance = 0;
+        int distanceA = 0;
+        int distanceB = 0;
+
+        for (int w = 0; w < labels1.length; w++) {
+            distance += Long.bitCount(labels1[w] & labels2[w]);
+            distanceA += Long.bitCount(labels1[w]);
+            distanceB += Long.bitCount(labels2[w]);
+        }
+
+        return 1 - distance / (Math.sqrt(distanceA) * Math.sqrt(distanceB));
+    }
+
+    /**
+     * Squared Euclidean distance of packed labels, as getDistanceLab on the instances they were packed from.
+     */
+    public static double getDistanceLab(long[] labels1, long[] labels2) {
+
+        int distance = 0;
+
+        for (int w = 0; w < labels1.length; w++) {
+            distance += Long.bitCount(labels1[w] ^ labels2[w]);
+        }
+
+        return distance;
+    }
+
+    /**
+     * Copies the labels of a kernel into the array and returns their squared norm.
+     */
+    public static double kernelLabels(Instance kernel, double[] labels) {
+
+        double norm = 0.0D;
+
+        for (int j = 0; j < labels.length; j++) {
+            labels[j] = kernel.classValue(j);
+            norm += labels[j] * labels[j];
+        }
+
+        return norm;
+    }
+
+    /**
+     * Cosine distance between the labels of a kernel, copied with their squared norm by kernelLabels, and packed
+     * labels, as getCosLab on the kernel and the instance. Only the set labels are visited.
+     */
+    public static double getCosLab(double[] kernelLabels, double kernelNorm, long[] labels) {
+
+        double distance = 0.0D;
+        int distanceB = 0;
+
+        for (int w = 0; w < labels.length; w++) {
+            long word = labels[w];
+            distanceB += Long.bitCount(word);
+
+            for (; word != 0; word &= word - 1) {
+                distance += kernelLabels[(w << 6) + Long.numberOfTrailingZeros(word)];
+            }
+        }
+
+        return 1 - distance / (Math.sqrt(kernelNorm) * Math.sqrt(distanceB));
+    }
+
+    /**
+     * Squared Euclidean distance between the labels of a kernel, copied with their squared norm by kernelLabels,
+     * and packed labels. Only the set labels are visited.
+     */
+    public static double getDistanceLab(double[] kernelLabels, double kernelNorm, long[] labels) {
+
+        double dot = 0.0D;
+        int count = 0;
+
+        for (int w = 0; w < labels.length; w++) {
+            long word = labels[w];
+            count += Long.bitCount(word);
+
+            for (; word != 0; word &= word - 1) {
+                dot += kernelLabels[(w << 6) + Long.numberOfTrailingZeros(word)];
+            }
+        }
+
+        return Math.max(0.0D, kernelNorm - 2.0D * dot + count);
+    }
+
 
     public static void printKernels(ArrayList<Instance> kernels) {
         if(kernels.size() == 0){
@@ -484,109 +605,46 @@ public class VectorOperators {
         }
         else // Sparse Instance
         {
-            ArrayList<Integer> indexValues = new ArrayList<Integer>();
-            ArrayList<Double> attributeValues = new ArrayList<Double>();
-
-            int firstI = -1, secondI = -1;
-            int firstNumValues = kernel.numValues();
-            int secondNumValues = multiLabelInstance.numValues();
-            int numAttributes = kernel.numAttributes();
-
-            for (int p1 = 0, p2 = 0; p1 < firstNumValues || p2 < secondNumValues;) {
-
-                if (p1 >= firstNumValues) {
-                    firstI = numAttributes;
-                } else {
-                    firstI = kernel.index(p1);
-                }
-
-                if (p2 >= secondNumValues) {
-                    secondI = numAttributes;
-                } else {
-                    secondI = multiLabelInstance.index(p2);
-                }
-
-                if (firstI == secondI) {
-                    double centroid = kernel.valueSparse(p1) * (double) numMemory;
-                    centroid += rate*multiLabelInstance.valueSparse(p2);
-                    centroid /= (double) (numMemory + 1);
-                    attributeValues.add(centroid);
-                    indexValues.add(firstI);
-                    p1++;
-                    p2++;
-                } else if (firstI > secondI) {
-
-                    double centroid = rate * multiLabelInstance.valueSparse(p2);
-                    centroid /= (double) (numMemory + 1);
-                    attributeValues.add(centroid);
-                    indexValues.add(secondI);
-
-                    p2++;
-                } else {
-                    double centroid = kernel.valueSparse(p1) * (double) numMemory;;
-                    centroid /= (double) (numMemory + 1);
-                    attributeValues.add(centroid);
-                    indexValues.add(firstI);
-                    p1++;
-                }
-            }
-
-            int[] index = new int[attributeValues.size()];
-            double[] value = new double[attributeValues.size()];
-
-            for (int i = 0; i < attributeValues.size(); i++) {
-                index[i] = indexValues.get(i);
-                value[i] = attributeValues.get(i);
+            SparseCentroid centroid;
+            if (kernel instanceof SparseCentroid) {
+                centroid = (SparseCentroid) kernel;
+            } else {
+                centroid = new SparseCentroid(kernel, multiLabelInstance.dataset());
             }
-
-            Instance newkernel = new SparseInstance(1.0, value, index, numAttributes);
-            InstancesHeader header = new InstancesHeader(multiLabelInstance.dataset());
-            newkernel.setDataset(header);
-            return newkernel;
-
-
+            centroid.update(multiLabelInstance, numMemory, rate);
+            return centroid;
         }
     }
 
     /**
-     * Returns the kernel with n biggest values (sorted).
+     * Returns the kernel without the feature values smaller than 0.01 in magnitude.
      */
     public static Instance kernelMax(Instance kernel) {
-        Instance newkernel = kernel;
-        //int indices[] = new int[n];
-        if(kernel.numValues() != kernel.numAttributes()){
-            int firstI = -1;
-            int NumValues  = kernel.numValues();
-            int numAttributes   = kernel.numAttributes();
-            int numOutputs      = kernel.numOutputAttributes();
-            double maxValue = 0.01;
-
-            for (int p1 = 0; p1 < NumValues; p1++) {
-
-                if (p1 >= NumValues) {
-                    firstI = numAttributes;
-                } else {
-                    firstI = kernel.index(p1);
-                }
+        return kernelMax(kernel, 0.01, Integer.MAX_VALUE);
+    }
 
-                if (kernel.classIndex() == 0) {
-                    if (firstI < numOutputs) {
-                        p1++;
-                        continue;
-                    }
-                }else{
-                    if (firstI >= kernel.classIndex()) {
-                        break;
-                    }
-                }
+    /**
+     * Returns the kernel without the feature values smaller than the threshold in magnitude, keeping at most the
+     * maxValues largest ones. The values are removed from the sparse arrays of the kernel, not set to 0, so that its
+     * size stays bounded however many distinct features are merged into it. Dense kernels are returned unchanged.
+     */
+    public static Instance kernelMax(Instance kernel, double threshold, int maxValues) {
 
-                if (kernel.valueSparse(p1) < maxValue) {
-                    newkernel.setValue(firstI,0);
-                    }
-                }
+        if (!(kernel instanceof SparseCentroid) && kernel.numValues() == kernel.numAttributes()) { // Dense Instance
+            return kernel;
+        }
+
+        SparseCentroid centroid;
+        if (kernel instanceof SparseCentroid) {
+            centroid = (SparseCentroid) kernel;
+        } else {
+            centroid = new SparseCentroid(kernel, kernel.dataset());
         }
 
+        int firstInput = kernel.classIndex() == 0 ? kernel.numOutputAttributes() : 0;
+        int endInput = kernel.classIndex() == 0 ? kernel.numAttributes() : kernel.classIndex();
+        centroid.prune(firstInput, endInput, threshold, maxValues);
 
-        return newkernel;
+        return centroid;
     }
 }
\ No newline at end of file
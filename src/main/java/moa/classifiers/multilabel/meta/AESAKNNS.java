@@ -1,7 +1,15 @@
 package moa.classifiers.multilabel.meta;
 
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.IntOption;
 import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstanceImpl;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
 import com.yahoo.labs.samoa.instances.MultiLabelInstance;
 import com.yahoo.labs.samoa.instances.MultiLabelPrediction;
@@ -12,6 +20,7 @@ import moa.classifiers.Classifier;
 import moa.classifiers.MultiLabelClassifier;
 import moa.classifiers.core.driftdetection.ADWIN;
 import moa.classifiers.multilabel.MLSAkNNSubspaces;
+import moa.classifiers.multilabel.SharedInstanceStore;
 import moa.core.Example;
 import moa.core.InstanceExample;
 import moa.core.Measurement;
@@ -34,12 +43,30 @@ public class AESAKNNS extends AbstractMultiLabelLearner implements MultiLabelCla
 	
 	public IntOption backgroundWindowSizeOption = new IntOption("backgroundWindowSize", 'y', "The number of instances in the background window.", 1000, 1, Integer.MAX_VALUE);
 
+	public FlagOption sharedStoreOption = new FlagOption("sharedStore", 'm', "Members keep their windows in a single store of instances shared by the ensemble.");
+
+	public IntOption numberOfJobsOption = new IntOption("numberOfJobs", 'j', "Total number of concurrent jobs used for training and prediction (-1 = as much as possible, 1 = sequential).", 1, -1, Integer.MAX_VALUE);
+
 	protected Classifier[] ensemble;
 
 	protected Classifier[] ensembleBackground;
 
 	protected ADWIN[] ADError;
 
+	protected SharedInstanceStore store;
+
+	protected Classifier prototype;
+
+	protected ArrayDeque<Classifier> spareMembers;
+
+	protected Random[] ensembleRandom;
+
+	protected Random[] ensembleBackgroundRandom;
+
+	protected boolean[] driftDetected;
+
+	protected transient ForkJoinPool pool;
+
 	protected long instancesSeen;
 	protected long firstWarningOn;
 	protected boolean warningDetected;
@@ -47,6 +74,12 @@ public class AESAKNNS extends AbstractMultiLabelLearner implements MultiLabelCla
 	@Override
 	public void setModelContext(InstancesHeader context) {
 		super.setModelContext(context);
+
+		if(this.prototype != null) {
+			this.prototype.setModelContext(modelContext);
+			this.prototype.resetLearning();
+			this.spareMembers.clear();
+		}
 		
 		if(this.ensemble != null) {
 			for (int i = 0; i < this.ensemble.length; i++) {
@@ -63,25 +96,175 @@ public class AESAKNNS extends AbstractMultiLabelLearner implements MultiLabelCla
 		this.firstWarningOn = 0;
 		this.instancesSeen = 0;
 
+		shutdownPool();
+
 		this.ensemble = new Classifier[this.ensembleSizeOption.getValue()];
 		this.ensembleBackground = new Classifier[this.ensembleSizeOption.getValue()];
 		
-		Classifier baseLearner = (Classifier) getPreparedClassOption(this.baseLearnerOption);
-		if(modelContext != null) baseLearner.setModelContext(modelContext);
-		baseLearner.resetLearning();
+		this.prototype = (Classifier) getPreparedClassOption(this.baseLearnerOption);
+		if(modelContext != null) this.prototype.setModelContext(modelContext);
+		this.prototype.resetLearning();
+
+		this.spareMembers = new ArrayDeque<Classifier>();
+
+		if(this.sharedStoreOption.isSet() && this.prototype instanceof MLSAkNNSubspaces)
+			this.store = new SharedInstanceStore();
+		else
+			this.store = null;
 
 		for (int i = 0; i < this.ensemble.length; i++) {
-			this.ensemble[i] = baseLearner.copy();
+			this.ensemble[i] = newMember();
 		}
 
 		for (int i = 0; i < this.ensemble.length; i++) {
-			this.ensembleBackground[i] = baseLearner.copy();
+			this.ensembleBackground[i] = newMember();
 		}
 
 		this.ADError = new ADWIN[this.ensemble.length];
 		for (int i = 0; i < this.ensemble.length; i++) {
 			this.ADError[i] = new ADWIN();
 		}
+
+		// Each member draws its bagging weights from its own stream, so results do not depend on the number of jobs
+		this.ensembleRandom = new Random[this.ensemble.length];
+		this.ensembleBackgroundRandom = new Random[this.ensemble.length];
+		for (int i = 0; i < this.ensemble.length; i++) {
+			this.ensembleRandom[i] = new Random(this.classifierRandom.nextLong());
+			this.ensembleBackgroundRandom[i] = new Random(this.classifierRandom.nextLong());
+		}
+
+		this.driftDetected = new boolean[this.ensemble.length];
+	}
+
+	/**
+	 * Runs the task for every member, on the fork/join pool when more than one job is allowed.
+	 */
+	protected void runMembers(int numMembers, IntConsumer task) {
+		int numberOfJobs = this.numberOfJobsOption.getValue();
+
+		if(numberOfJobs == -1)
+			numberOfJobs = Runtime.getRuntime().availableProcessors();
+
+		if(numberOfJobs <= 1) {
+			for (int i = 0; i < numMembers; i++)
+				task.accept(i);
+		} else {
+			if(this.pool == null || this.pool.getParallelism() != numberOfJobs) {
+				shutdownPool();
+				this.pool = new ForkJoinPool(numberOfJobs);
+			}
+
+			this.pool.submit(() -> IntStream.range(0, numMembers).parallel().forEach(task)).join();
+		}
+	}
+
+	/**
+	 * Releases the threads of the fork/join pool, if any. The next parallel run creates a new one.
+	 */
+	protected void shutdownPool() {
+		if(this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+
+	/**
+	 * Makes the member keep its window in the store of the ensemble, if any.
+	 */
+	protected Classifier shareStore(Classifier member) {
+		if(this.store != null)
+			((MLSAkNNSubspaces) member).setSharedStore(this.store);
+		return member;
+	}
+
+	/**
+	 * Trains the member on a weighted view of the instance, sharing its values.
+	 * Members sharing the store only keep the slot of the instance and its weight.
+	 */
+	protected void trainMember(Classifier member, Instance inst, int slot, double weight) {
+		if(this.store != null) {
+			((MLSAkNNSubspaces) member).trainOnSharedInstance(slot, weight);
+		} else if(inst instanceof InstanceImpl) {
+			member.trainOnInstance(new InstanceImpl((InstanceImpl) inst, weight));
+		} else {
+			Instance weightedInst = (Instance) inst.copy();
+			weightedInst.setWeight(weight);
+			member.trainOnInstance(weightedInst);
+		}
+	}
+
+	/**
+	 * Returns a fresh member, recycling a discarded one in place when available and copying the prototype otherwise.
+	 */
+	protected Classifier newMember() {
+		Classifier member = this.spareMembers.poll();
+
+		if(member == null)
+			return shareStore(this.prototype.copy());
+
+		member.resetLearning();
+		if(member instanceof MLSAkNNSubspaces)
+			((MLSAkNNSubspaces) member).resetSubspace();
+
+		return member;
+	}
+
+	/**
+	 * Releases the instances referenced by a member that leaves the ensemble and keeps it for recycling.
+	 */
+	protected void discardMember(Classifier member) {
+		if(this.store != null)
+			((MLSAkNNSubspaces) member).releaseSharedInstances();
+		this.spareMembers.push(member);
+	}
+
+	/**
+	 * Tests and trains the i-th member of the ensemble, resetting it when a drift is detected.
+	 */
+	protected void trainEnsembleMember(int i, Instance inst, int slot) {
+
+		Prediction prediction = this.ensemble[i].getPredictionForInstance(inst);
+		((MLSAkNNSubspaces) this.ensemble[i]).evaluator.addResult(new InstanceExample(inst), prediction);
+
+		double ErrEstim = this.ADError[i].getEstimation();
+
+		boolean warning = false;
+
+		// Update the drift detection method
+		for(int o = 0; o < inst.numOutputAttributes(); o++) {
+			if(prediction.getVotes(o) != null) {
+				warning = this.ADError[i].setInput(Utils.maxIndex(prediction.getVotes(o)) == (int) inst.classValue(o) ? 0 : 1) || warning;
+			}
+		}
+
+		this.driftDetected[i] = warning && this.ADError[i].getEstimation() > ErrEstim;
+
+		if (this.driftDetected[i]) {
+			this.ensemble[i].resetLearning();
+			if(this.store != null)
+				trainMember(this.ensemble[i], inst, slot, inst.weight());
+			else
+				this.ensemble[i].trainOnInstance(inst);
+			this.ADError[i] = new ADWIN();
+		}
+
+		int k = MiscUtils.poisson(1.0, this.ensembleRandom[i]);
+		if (k > 0) {
+			trainMember(this.ensemble[i], inst, slot, inst.weight() * k);
+		}
+	}
+
+	/**
+	 * Tests and trains the i-th member of the background ensemble.
+	 */
+	protected void trainBackgroundMember(int i, Instance inst, int slot) {
+
+		((MLSAkNNSubspaces) this.ensembleBackground[i]).evaluator.addResult(new InstanceExample(inst), this.ensembleBackground[i].getPredictionForInstance(inst));
+
+		int k = MiscUtils.poisson(1.0, this.ensembleBackgroundRandom[i]);
+		if (k > 0) {
+			trainMember(this.ensembleBackground[i], inst, slot, inst.weight() * k);
+		}
 	}
 
 	@Override
@@ -89,56 +272,24 @@ public class AESAKNNS extends AbstractMultiLabelLearner implements MultiLabelCla
 
 		this.instancesSeen++;
 
+		int slot = this.store != null ? this.store.add(inst) : -1;
+
+		runMembers(this.ensemble.length, i -> trainEnsembleMember(i, inst, slot));
+
 		for (int i = 0; i < this.ensemble.length; i++) {
-			
-			Prediction prediction = this.ensemble[i].getPredictionForInstance(inst);
-			((MLSAkNNSubspaces) this.ensemble[i]).evaluator.addResult(new InstanceExample(inst), prediction);
-			
-			double ErrEstim = this.ADError[i].getEstimation();
-			
-			boolean warning = false;
-
-			// Update the drift detection method
-			for(int o = 0; o < inst.numOutputAttributes(); o++) {
-				if(prediction.getVotes(o) != null) {
-					warning = this.ADError[i].setInput(Utils.maxIndex(prediction.getVotes(o)) == (int) inst.classValue(o) ? 0 : 1) || warning;
-				}
-			}
-			
-			if (warning && this.ADError[i].getEstimation() > ErrEstim) {
-//				System.err.println("Change model "+i+"!");
-				this.ensemble[i].resetLearning();
-				this.ensemble[i].trainOnInstance(inst);
-				this.ADError[i] = new ADWIN();
-				
-				if(this.warningDetected == false) {
-					this.firstWarningOn = instancesSeen;
-					this.warningDetected = true;
-				}
-			}
-			
-			int k = MiscUtils.poisson(1.0, this.classifierRandom);
-			if (k > 0) {
-				Instance weightedInst = (Instance) inst.copy();
-				weightedInst.setWeight(inst.weight() * k);
-				this.ensemble[i].trainOnInstance(weightedInst);
+			if(this.driftDetected[i] && this.warningDetected == false) {
+				this.firstWarningOn = instancesSeen;
+				this.warningDetected = true;
 			}
 		}
 
 		if(this.warningDetected) {
 
-			for (int i = 0; i < this.ensembleBackground.length; i++) {
-				((MLSAkNNSubspaces) this.ensembleBackground[i]).evaluator.addResult(new InstanceExample(inst), this.ensembleBackground[i].getPredictionForInstance(inst));
-				
-				int k = MiscUtils.poisson(1.0, this.classifierRandom);
-				if (k > 0) {
-					Instance weightedInst = (Instance) inst.copy();
-					weightedInst.setWeight(inst.weight() * k);
-					this.ensembleBackground[i].trainOnInstance(weightedInst);
-				}
-			}
+			runMembers(this.ensembleBackground.length, i -> trainBackgroundMember(i, inst, slot));
 
 			if(this.instancesSeen - this.firstWarningOn == backgroundWindowSizeOption.getValue()) {
+				boolean[] promoted = new boolean[this.ensembleBackground.length];
+
 				// Compare the ensemble and the background ensemble. Select the best components
 				for (int i = 0; i < this.ensembleBackground.length; i++) {
 
@@ -160,22 +311,25 @@ public class AESAKNNS extends AbstractMultiLabelLearner implements MultiLabelCla
 					}
 					
 					if(tentativeSubsetAccuracy * tentativeHammingScore > minSubsetAccuracyHamming) {
+						discardMember(this.ensemble[minSubsetAccuracyHammingClassifier]);
 						this.ensemble[minSubsetAccuracyHammingClassifier] = this.ensembleBackground[i];
+						promoted[i] = true;
 						this.ADError[minSubsetAccuracyHammingClassifier] = new ADWIN();
 					}
 				}
 
-				Classifier baseLearner = (Classifier) getPreparedClassOption(this.baseLearnerOption);
-				baseLearner.setModelContext(this.modelContext);
-				baseLearner.resetLearning();
-
 				for (int i = 0; i < this.ensembleBackground.length; i++) {
-					this.ensembleBackground[i] = baseLearner.copy();
+					if(!promoted[i])
+						discardMember(this.ensembleBackground[i]);
+					this.ensembleBackground[i] = newMember();
 				}
 
 				this.warningDetected = false;
 			}
 		}
+
+		if(this.store != null)
+			this.store.release(slot);
 	}
 
 	@Override
@@ -185,7 +339,9 @@ public class AESAKNNS extends AbstractMultiLabelLearner implements MultiLabelCla
 
 	@Override
 	public Prediction getPredictionForInstance(Example<Instance> example) {
-		return compilePredictions(this.ensemble, example);
+		Prediction[] predictions = new Prediction[this.ensemble.length];
+		runMembers(this.ensemble.length, i -> predictions[i] = this.ensemble[i].getPredictionForInstance(example));
+		return combinePredictions(predictions, (Instance) example.getData());
 	}
 
 	public static Prediction compilePredictions(Classifier h[], Example<Instance> example) {
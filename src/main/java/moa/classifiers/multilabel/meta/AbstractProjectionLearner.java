@@ -0,0 +1,199 @@
+package moa.classifiers.multilabel.meta;
+
+import com.github.javacliparser.FlagOption;
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Prediction;
+import com.yahoo.labs.samoa.instances.Range;
+
+import moa.classifiers.AbstractMultiLabelLearner;
+import moa.classifiers.Classifier;
+import moa.classifiers.MultiLabelClassifier;
+import moa.core.Measurement;
+import moa.options.ClassOption;
+
+/**
+ * Base of the learners that map the input attributes of every instance to a fixed number of attributes before the
+ * base learner sees them. The labels may be the first or the last attributes of the stream, and stay on the same
+ * side of the mapped attributes.
+ */
+public abstract class AbstractProjectionLearner extends AbstractMultiLabelLearner implements MultiLabelClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	public ClassOption baseLearnerOption = new ClassOption("baseLearner", 'l', "Classifier to train on the projected instances.", Classifier.class, "moa.classifiers.multilabel.ARkNN");
+
+	public FlagOption compareOption = new FlagOption("compare", 'c', "Also trains the base learner on the original instances, to report the speedup and the change of accuracy of the projection.");
+
+	protected Classifier baseLearner;
+
+	// Learner on the original instances, only when comparing
+	protected Classifier originalLearner;
+
+	protected InstancesHeader projectedHeader;
+
+	// Input attributes of the stream, from firstInput to endInput exclusive
+	protected int firstInput;
+	protected int endInput;
+
+	// Index of the first mapped attribute and of the first label in the mapped instances
+	protected int firstProjected;
+	protected int firstLabel;
+
+	protected long projectedNanos;
+	protected long originalNanos;
+	protected long numLabelsPredicted;
+	protected long projectedHits;
+	protected long originalHits;
+
+	/**
+	 * Returns the number of input attributes of the projected instances.
+	 */
+	protected abstract int numProjectedAttributes();
+
+	/**
+	 * Prepares the projection of the given number of input attributes.
+	 */
+	protected abstract void initializeProjection(int numInputs);
+
+	/**
+	 * Returns the instance with its labels and weight and the projection of its input attributes.
+	 */
+	protected abstract Instance project(Instance instance);
+
+	@Override
+	public void setModelContext(InstancesHeader context) {
+		super.setModelContext(context);
+
+		try {
+			int numInputs = context.numInputAttributes();
+			int numOutputs = context.numOutputAttributes();
+
+			// Multi-label headers leave the class index to their output range, which their instances resolve
+			Instance probe = new DenseInstance(1.0, new double[context.numAttributes()]);
+			probe.setDataset(context);
+			boolean labelsFirst = probe.classIndex() == 0;
+
+			// The input attributes are stored after the labels, or before them
+			this.firstInput = labelsFirst ? numOutputs : 0;
+			this.endInput = labelsFirst ? context.numAttributes() : probe.classIndex();
+			this.firstProjected = labelsFirst ? numOutputs : 0;
+			this.firstLabel = labelsFirst ? 0 : numProjectedAttributes();
+
+			if(this.endInput - this.firstInput != numInputs)
+				throw new IllegalArgumentException("The labels must be the first or the last attributes of the stream, not from attribute " + probe.classIndex());
+
+			this.projectedHeader = new InstancesHeader(context);
+
+			for (int att = numInputs - 1; att >= 0; att--)
+				this.projectedHeader.deleteAttributeAt(this.firstInput + att);
+
+			for (int j = 0; j < numProjectedAttributes(); j++)
+				this.projectedHeader.insertAttributeAt(new Attribute("projection" + j), this.firstProjected + j);
+
+			if(!labelsFirst)
+				this.projectedHeader.setRangeOutputIndices(new Range((this.firstLabel + 1) + "-" + (this.firstLabel + numOutputs)));
+
+			this.projectedHeader.setClassIndex(Integer.MAX_VALUE); // FIXING ML CLASS INDEX AFTER REPLACING THE INPUT ATTS
+
+			initializeProjection(numInputs);
+
+			if(this.baseLearner != null) {
+				this.baseLearner.setModelContext(this.projectedHeader);
+				this.baseLearner.resetLearning();
+			}
+
+			if(this.originalLearner != null) {
+				this.originalLearner.setModelContext(context);
+				this.originalLearner.resetLearning();
+			}
+		} catch(Exception e) {
+			System.err.println("Error: no model context available.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		this.baseLearner = (Classifier) getPreparedClassOption(this.baseLearnerOption);
+		if(this.projectedHeader != null) this.baseLearner.setModelContext(this.projectedHeader);
+		this.baseLearner.resetLearning();
+
+		if(this.compareOption.isSet()) {
+			this.originalLearner = this.baseLearner.copy();
+			if(modelContext != null) this.originalLearner.setModelContext(modelContext);
+			this.originalLearner.resetLearning();
+		} else {
+			this.originalLearner = null;
+		}
+
+		this.projectedNanos = 0;
+		this.originalNanos = 0;
+		this.numLabelsPredicted = 0;
+		this.projectedHits = 0;
+		this.originalHits = 0;
+	}
+
+	@Override
+	public void trainOnInstanceImpl(MultiLabelInstance instance) {
+		long start = System.nanoTime();
+		this.baseLearner.trainOnInstance(project(instance));
+		this.projectedNanos += System.nanoTime() - start;
+
+		if(this.originalLearner != null) {
+			start = System.nanoTime();
+			this.originalLearner.trainOnInstance(instance);
+			this.originalNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	public Prediction getPredictionForInstance(MultiLabelInstance instance) {
+		long start = System.nanoTime();
+		Prediction prediction = this.baseLearner.getPredictionForInstance(project(instance));
+		this.projectedNanos += System.nanoTime() - start;
+
+		if(this.originalLearner != null) {
+			start = System.nanoTime();
+			Prediction originalPrediction = this.originalLearner.getPredictionForInstance(instance);
+			this.originalNanos += System.nanoTime() - start;
+
+			for (int j = 0; j < instance.numberOutputTargets(); j++) {
+				this.numLabelsPredicted++;
+				if(predictedLabel(prediction, j) == instance.classValue(j))
+					this.projectedHits++;
+				if(predictedLabel(originalPrediction, j) == instance.classValue(j))
+					this.originalHits++;
+			}
+		}
+
+		return prediction;
+	}
+
+	private static int predictedLabel(Prediction prediction, int j) {
+		double[] votes = prediction != null ? prediction.getVotes(j) : null;
+		return votes != null && votes.length > 1 && votes[1] > votes[0] ? 1 : 0;
+	}
+
+	@Override
+	public boolean isRandomizable() {
+		return true;
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+		return new Measurement[] {
+			new Measurement("projected dimensions", numProjectedAttributes()),
+			new Measurement("projection speedup", this.projectedNanos > 0 && this.originalNanos > 0 ? this.originalNanos / (double) this.projectedNanos : 0),
+			new Measurement("projection hamming score delta", this.numLabelsPredicted > 0 ? (this.projectedHits - this.originalHits) / (double) this.numLabelsPredicted : 0)
+		};
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent) {
+	}
+}
@@ -0,0 +1,135 @@
+package moa.classifiers.multilabel.meta;
+
+import java.util.Arrays;
+
+import com.github.javacliparser.IntOption;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.SparseInstance;
+
+import moa.core.Measurement;
+
+/**
+ * Maps the input attributes of every instance into a fixed number of hashed attributes before the base learner sees
+ * them (Weinberger et al., 2009). Each input attribute is added to the bucket of its hashed index, with the sign of
+ * another bit of the hash, so collisions cancel out in expectation in the inner products. The hashed instances are
+ * sparse, so the ranges, windows and indices of the base learner stay bounded by the number of buckets whatever the
+ * size of the vocabulary of the stream.
+ */
+public class FeatureHashing extends AbstractProjectionLearner {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public String getPurposeString() {
+		return "Signed feature hashing of the input attributes in front of a multi-label learner.";
+	}
+
+	public IntOption dimensionsOption = new IntOption("dimensions", 'd', "The number of hashed input attributes.", 4096, 1, Integer.MAX_VALUE);
+
+	protected long numHashedValues;
+	protected long numCollisions;
+
+	@Override
+	protected int numProjectedAttributes() {
+		return this.dimensionsOption.getValue();
+	}
+
+	@Override
+	protected void initializeProjection(int numInputs) {
+		this.numHashedValues = 0;
+		this.numCollisions = 0;
+	}
+
+	/**
+	 * Returns the bucket of the input attribute in the low bits and its sign in the highest bit.
+	 */
+	protected int hash(int att) {
+		int h = att * 0x9E3779B9 + this.randomSeed;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	@Override
+	protected Instance project(Instance instance) {
+		int numOutputs = instance.numOutputAttributes();
+		int numBuckets = this.dimensionsOption.getValue();
+		boolean dense = instance.numValues() == instance.numAttributes();
+
+		// Bucket of each non-zero input value in the high half, its position in the low half, sorted by bucket
+		long[] keys = new long[dense ? instance.numInputAttributes() : instance.numValues()];
+		double[] inputs = new double[keys.length];
+		int numInputs = 0;
+
+		for (int p = 0; p < keys.length; p++) {
+			int att = dense ? p : instance.index(p) - this.firstInput;
+			if(att < 0 || att >= instance.numInputAttributes())
+				continue;
+
+			double value = dense ? instance.valueInputAttribute(att) : instance.valueSparse(p);
+			if(value == 0)
+				continue;
+
+			int h = hash(att);
+			inputs[numInputs] = h < 0 ? -value : value;
+			keys[numInputs] = (long) ((h & Integer.MAX_VALUE) % numBuckets) << 32 | numInputs;
+			numInputs++;
+		}
+
+		Arrays.sort(keys, 0, numInputs);
+
+		double[] values = new double[numOutputs + numInputs];
+		int[] indices = new int[numOutputs + numInputs];
+		int numValues = 0;
+
+		// Labels stored before the hashed attributes
+		if(this.firstLabel == 0)
+			numValues = addLabels(instance, values, indices, numValues);
+
+		for (int i = 0; i < numInputs; i++) {
+			int index = this.firstProjected + (int) (keys[i] >>> 32);
+			double value = inputs[(int) keys[i]];
+
+			if(numValues > 0 && indices[numValues - 1] == index) {
+				values[numValues - 1] += value;
+				this.numCollisions++;
+			} else {
+				values[numValues] = value;
+				indices[numValues++] = index;
+			}
+		}
+
+		if(this.firstLabel != 0)
+			numValues = addLabels(instance, values, indices, numValues);
+
+		this.numHashedValues += numInputs;
+
+		Instance hashed = new SparseInstance(instance.weight(), Arrays.copyOf(values, numValues), Arrays.copyOf(indices, numValues), numOutputs + numBuckets);
+		hashed.setDataset(this.projectedHeader);
+		return hashed;
+	}
+
+	/**
+	 * Appends the non-zero labels of the instance at their indices in the hashed instance, returning the number of values.
+	 */
+	private int addLabels(Instance instance, double[] values, int[] indices, int numValues) {
+		for (int j = 0; j < instance.numOutputAttributes(); j++) {
+			if(instance.classValue(j) != 0) {
+				values[numValues] = instance.classValue(j);
+				indices[numValues++] = this.firstLabel + j;
+			}
+		}
+		return numValues;
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+		Measurement[] measurements = super.getModelMeasurementsImpl();
+		measurements = Arrays.copyOf(measurements, measurements.length + 1);
+		measurements[measurements.length - 1] = new Measurement("hash collision rate", this.numHashedValues > 0 ? this.numCollisions / (double) this.numHashedValues : 0);
+		return measurements;
+	}
+}
@@ -0,0 +1,107 @@
+package moa.classifiers.multilabel.meta;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.github.javacliparser.IntOption;
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+ * Projects the input attributes of every instance to a lower dimension before the base learner sees them, by a
+ * sparse random matrix seeded by the learner: each entry is sqrt(3 / d) with probability 1/6, its negation with
+ * probability 1/6 and 0 otherwise (Achlioptas, 2003), which preserves the Euclidean distances up to a small
+ * distortion with high probability. The matrix is drawn from the header, so there is no fitting pass, and sparse
+ * instances only visit the entries of their non-zero values.
+ */
+public class RandomProjection extends AbstractProjectionLearner {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public String getPurposeString() {
+		return "Sparse random projection of the input attributes in front of a multi-label learner.";
+	}
+
+	public IntOption dimensionsOption = new IntOption("dimensions", 'd', "The number of projected input attributes.", 100, 1, Integer.MAX_VALUE);
+
+	// Projected attributes each input attribute is added to and subtracted from
+	protected int[][] positiveTargets;
+	protected int[][] negativeTargets;
+
+	protected double scale;
+
+	@Override
+	protected int numProjectedAttributes() {
+		return this.dimensionsOption.getValue();
+	}
+
+	/**
+	 * Draws the sparse projection matrix, by columns, from the seed of the learner.
+	 */
+	@Override
+	protected void initializeProjection(int numInputs) {
+		int dimensions = this.dimensionsOption.getValue();
+		Random random = new Random(this.randomSeed);
+		int[] positive = new int[dimensions];
+		int[] negative = new int[dimensions];
+
+		this.positiveTargets = new int[numInputs][];
+		this.negativeTargets = new int[numInputs][];
+		this.scale = Math.sqrt(3.0 / dimensions);
+
+		for (int att = 0; att < numInputs; att++) {
+			int numPositive = 0;
+			int numNegative = 0;
+
+			for (int j = 0; j < dimensions; j++) {
+				int draw = random.nextInt(6);
+				if(draw == 0)
+					positive[numPositive++] = j;
+				else if(draw == 1)
+					negative[numNegative++] = j;
+			}
+
+			this.positiveTargets[att] = Arrays.copyOf(positive, numPositive);
+			this.negativeTargets[att] = Arrays.copyOf(negative, numNegative);
+		}
+	}
+
+	@Override
+	protected Instance project(Instance instance) {
+		int numOutputs = instance.numOutputAttributes();
+		int dimensions = this.dimensionsOption.getValue();
+		double[] values = new double[numOutputs + dimensions];
+
+		for (int j = 0; j < numOutputs; j++)
+			values[this.firstLabel + j] = instance.classValue(j);
+
+		if(instance.numValues() == instance.numAttributes()) { // Dense Instance
+			for (int att = 0; att < instance.numInputAttributes(); att++)
+				addColumn(values, this.firstProjected, att, instance.valueInputAttribute(att));
+		} else { // Sparse Instance
+			for (int p = 0; p < instance.numValues(); p++) {
+				int index = instance.index(p);
+				if(index >= this.firstInput && index < this.endInput)
+					addColumn(values, this.firstProjected, index - this.firstInput, instance.valueSparse(p));
+			}
+		}
+
+		for (int j = this.firstProjected; j < this.firstProjected + dimensions; j++)
+			values[j] *= this.scale;
+
+		Instance projected = new DenseInstance(instance.weight(), values);
+		projected.setDataset(this.projectedHeader);
+		return projected;
+	}
+
+	private void addColumn(double[] values, int offset, int att, double value) {
+		if(value == 0)
+			return;
+
+		for (int j : this.positiveTargets[att])
+			values[offset + j] += value;
+		for (int j : this.negativeTargets[att])
+			values[offset + j] -= value;
+	}
+}
@@ -0,0 +1,63 @@
+package moa.classifiers.multilabel;
+
+/**
+ * Distances and products over rows of primitive values, such as the centroid matrix of OMK.
+ * This is the Java 17 version of the multi-release jar. The operations run on the widest vector species of the CPU
+ * when the jdk.incubator.vector module is added to the runtime (--add-modules jdk.incubator.vector), and fall back
+ * to the scalar loops otherwise.
+ */
+public final class RowOperators {
+
+    // The vectorized class is only loaded when the module is resolved
+    private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private RowOperators() {
+    }
+
+    /**
+     * Returns whether the operations run on the vector lanes of the CPU.
+     */
+    public static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two rows.
+     */
+    public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return VECTORIZED ? VectorizedRowOperators.squaredDistance(a, aOffset, b, bOffset, length)
+                : ScalarRowOperators.squaredDistance(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two rows, those of the first one multiplied by the scale.
+     */
+    public static double squaredDistance(double[] a, int aOffset, double scale, double[] b, int bOffset, int length) {
+        return VECTORIZED ? VectorizedRowOperators.squaredDistance(a, aOffset, scale, b, bOffset, length)
+                : ScalarRowOperators.squaredDistance(a, aOffset, scale, b, bOffset, length);
+    }
+
+    /**
+     * Returns the dot product of length values of two rows.
+     */
+    public static double dotProduct(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return VECTORIZED ? VectorizedRowOperators.dotProduct(a, aOffset, b, bOffset, length)
+                : ScalarRowOperators.dotProduct(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two float rows, accumulated in float.
+     */
+    public static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return VECTORIZED ? VectorizedRowOperators.squaredDistance(a, aOffset, b, bOffset, length)
+                : ScalarRowOperators.squaredDistance(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Returns the squared Euclidean distance between length values of two float rows, accumulated in double.
+     */
+    public static double mixedSquaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return VECTORIZED ? VectorizedRowOperators.mixedSquaredDistance(a, aOffset, b, bOffset, length)
+                : ScalarRowOperators.mixedSquaredDistance(a, aOffset, b, bOffset, length);
+    }
+}
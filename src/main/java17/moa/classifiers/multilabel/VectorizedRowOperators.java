@@ -0,0 +1,123 @@
+package moa.classifiers.multilabel;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Loops over rows of primitive values on the preferred vector species, with a scalar tail. The lanes are summed at
+ * the end, so the results may differ from the scalar ones in the last bits.
+ */
+final class VectorizedRowOperators {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // Floats filling as many lanes as the double species, widened to it
+    private static final VectorSpecies<Float> HALF_FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+    private VectorizedRowOperators() {
+    }
+
+    static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector d = DoubleVector.fromArray(SPECIES, a, aOffset + i).sub(DoubleVector.fromArray(SPECIES, b, bOffset + i));
+            sum = d.fma(d, sum);
+        }
+
+        double distance = sum.reduceLanes(jdk.incubator.vector.VectorOperators.ADD);
+
+        for (; i < length; i++) {
+            double d = a[aOffset + i] - b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    static double squaredDistance(double[] a, int aOffset, double scale, double[] b, int bOffset, int length) {
+
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector d = DoubleVector.fromArray(SPECIES, a, aOffset + i).mul(scale).sub(DoubleVector.fromArray(SPECIES, b, bOffset + i));
+            sum = d.fma(d, sum);
+        }
+
+        double distance = sum.reduceLanes(jdk.incubator.vector.VectorOperators.ADD);
+
+        for (; i < length; i++) {
+            double d = a[aOffset + i] * scale - b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    static double dotProduct(double[] a, int aOffset, double[] b, int bOffset, int length) {
+
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += SPECIES.length()) {
+            sum = DoubleVector.fromArray(SPECIES, a, aOffset + i).fma(DoubleVector.fromArray(SPECIES, b, bOffset + i), sum);
+        }
+
+        double dot = sum.reduceLanes(jdk.incubator.vector.VectorOperators.ADD);
+
+        for (; i < length; i++) {
+            dot += a[aOffset + i] * b[bOffset + i];
+        }
+        return dot;
+    }
+
+    static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+
+        FloatVector sum = FloatVector.zero(FLOAT_SPECIES);
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector d = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i).sub(FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i));
+            sum = d.fma(d, sum);
+        }
+
+        float distance = sum.reduceLanes(jdk.incubator.vector.VectorOperators.ADD);
+
+        for (; i < length; i++) {
+            float d = a[aOffset + i] - b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    static double mixedSquaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = HALF_FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += HALF_FLOAT_SPECIES.length()) {
+            DoubleVector va = (DoubleVector) FloatVector.fromArray(HALF_FLOAT_SPECIES, a, aOffset + i).convertShape(jdk.incubator.vector.VectorOperators.F2D, SPECIES, 0);
+            DoubleVector vb = (DoubleVector) FloatVector.fromArray(HALF_FLOAT_SPECIES, b, bOffset + i).convertShape(jdk.incubator.vector.VectorOperators.F2D, SPECIES, 0);
+            DoubleVector d = va.sub(vb);
+            sum = d.fma(d, sum);
+        }
+
+        double distance = sum.reduceLanes(jdk.incubator.vector.VectorOperators.ADD);
+
+        for (; i < length; i++) {
+            double d = (double) a[aOffset + i] - (double) b[bOffset + i];
+            distance += d * d;
+        }
+        return distance;
+    }
+}
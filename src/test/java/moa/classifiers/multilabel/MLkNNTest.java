@@ -0,0 +1,168 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Range;
+import com.yahoo.labs.samoa.instances.SparseInstance;
+
+public class MLkNNTest {
+
+    private static final int NUM_LABELS = 3;
+    private static final int NUM_INPUTS = 8;
+    private static final int LIMIT = 60;
+    private static final int EXACT_ROWS = 10;
+
+    private static InstancesHeader header() {
+        StringBuilder arff = new StringBuilder("@relation test\n");
+        for (int l = 0; l < NUM_LABELS; l++)
+            arff.append("@attribute label").append(l).append(" {0,1}\n");
+        for (int i = 0; i < NUM_INPUTS; i++)
+            arff.append("@attribute input").append(i).append(" numeric\n");
+        arff.append("@data\n");
+
+        Instances dataset = new Instances(new StringReader(arff.toString()), new Range("1-" + NUM_LABELS));
+        return new InstancesHeader(dataset);
+    }
+
+    private static MLkNN learner(InstancesHeader header, int precision, int rangeFreeze) {
+        return learner(header, precision, rangeFreeze, LIMIT);
+    }
+
+    private static MLkNN learner(InstancesHeader header, int precision, int rangeFreeze, int exactRows) {
+        MLkNN learner = new MLkNN();
+        learner.kOption.setValue(5);
+        learner.limitOption.setValue(LIMIT);
+        learner.precisionOption.setChosenIndex(precision);
+        learner.exactRowsOption.setValue(exactRows);
+        learner.rangeFreezeOption.setValue(rangeFreeze);
+        learner.setModelContext(header);
+        return learner;
+    }
+
+    /**
+     * Returns an instance whose ranges keep widening, with negative inputs and, when sparse, about half of them absent.
+     */
+    private static Instance instance(InstancesHeader header, Random random, int t, boolean sparse) {
+        double[] values = new double[NUM_LABELS + NUM_INPUTS];
+        for (int l = 0; l < NUM_LABELS; l++)
+            values[l] = random.nextInt(2);
+        for (int i = 0; i < NUM_INPUTS; i++)
+            if (!sparse || random.nextBoolean())
+                values[NUM_LABELS + i] = random.nextGaussian() * (1 + t / 100) - 0.5;
+
+        Instance instance;
+        if (sparse) {
+            int numValues = 0;
+            for (double value : values)
+                if (value != 0)
+                    numValues++;
+            double[] stored = new double[numValues];
+            int[] indices = new int[numValues];
+            numValues = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != 0) {
+                    stored[numValues] = values[i];
+                    indices[numValues++] = i;
+                }
+            }
+            instance = new SparseInstance(1.0, stored, indices, values.length);
+        } else {
+            instance = new DenseInstance(1.0, values);
+        }
+        instance.setDataset(header);
+        return instance;
+    }
+
+    private static void assertSameNeighbourhoods(boolean sparse, int rangeFreeze) {
+        InstancesHeader header = header();
+        MLkNN exact = learner(header, 0, rangeFreeze);
+        MLkNN quantized = learner(header, 3, rangeFreeze);
+        Random random = new Random(1);
+
+        for (int t = 0; t < 400; t++) {
+            MultiLabelInstance instance = (MultiLabelInstance) instance(header, random, t, sparse);
+            exact.trainOnInstanceImpl(instance);
+            quantized.trainOnInstanceImpl(instance);
+
+            assertEquals(exact.windowSize, quantized.windowSize);
+            for (int p = 0; p < exact.windowSize; p++)
+                assertArrayEquals("instance " + t + ", member " + p, exact.getNeighbours(p), quantized.getNeighbours(p));
+        }
+    }
+
+    /**
+     * Checks that only the newest members keep their instance, and that every neighbourhood holds distinct members of
+     * the window other than its own, as the ranges keep widening.
+     */
+    private static void assertValidWithCodedMembers(boolean sparse) {
+        InstancesHeader header = header();
+        MLkNN learner = learner(header, 3, 0, EXACT_ROWS);
+        Random random = new Random(1);
+
+        for (int t = 0; t < 400; t++) {
+            MultiLabelInstance instance = (MultiLabelInstance) instance(header, random, t, sparse);
+            learner.trainOnInstanceImpl(instance);
+            learner.getPredictionForInstance(instance);
+
+            Set<Integer> slots = new HashSet<Integer>();
+            for (int p = 0; p < learner.windowSize; p++) {
+                slots.add(learner.slotAt(p));
+                if (p < learner.windowSize - EXACT_ROWS)
+                    assertNull("instance " + t + ", member " + p, learner.window[learner.slotAt(p)]);
+                else
+                    assertNotNull("instance " + t + ", member " + p, learner.window[learner.slotAt(p)]);
+            }
+
+            for (int p = 0; p < learner.windowSize; p++) {
+                int[] neighbours = learner.getNeighbours(p);
+                Set<Integer> distinct = new HashSet<Integer>();
+
+                assertEquals("instance " + t + ", member " + p, Math.min(5, learner.windowSize - 1), neighbours.length);
+                for (int neighbour : neighbours) {
+                    assertTrue("instance " + t + ", member " + p, slots.contains(neighbour));
+                    assertFalse("instance " + t + ", member " + p, neighbour == learner.slotAt(p));
+                    assertTrue("instance " + t + ", member " + p, distinct.add(neighbour));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void int8NeighbourhoodsEqualDoubleOnDenseStreams() {
+        assertSameNeighbourhoods(false, 0);
+    }
+
+    @Test
+    public void int8NeighbourhoodsEqualDoubleOnSparseStreamsWithNegativeValues() {
+        assertSameNeighbourhoods(true, 0);
+    }
+
+    @Test
+    public void int8NeighbourhoodsEqualDoubleOutsideFrozenRanges() {
+        assertSameNeighbourhoods(false, 50);
+        assertSameNeighbourhoods(true, 50);
+    }
+
+    @Test
+    public void int8NeighbourhoodsStayValidWithCodedMembers() {
+        assertValidWithCodedMembers(false);
+        assertValidWithCodedMembers(true);
+    }
+}